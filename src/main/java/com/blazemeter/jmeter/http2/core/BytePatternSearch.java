@@ -0,0 +1,51 @@
+package com.blazemeter.jmeter.http2.core;
+
+/*
+ Knuth-Morris-Pratt search, which only needs to keep the length of the pattern prefix matched
+ so far to find matches spanning several chunks.
+ */
+class BytePatternSearch {
+
+  private final byte[] pattern;
+  private final int[] fallbacks;
+  private int matchedLength;
+
+  BytePatternSearch(byte[] pattern) {
+    if (pattern.length == 0) {
+      throw new IllegalArgumentException("Empty search pattern");
+    }
+    this.pattern = pattern;
+    this.fallbacks = new int[pattern.length];
+    int length = 0;
+    for (int i = 1; i < pattern.length; i++) {
+      while (length > 0 && pattern[i] != pattern[length]) {
+        length = fallbacks[length - 1];
+      }
+      if (pattern[i] == pattern[length]) {
+        length++;
+      }
+      fallbacks[i] = length;
+    }
+  }
+
+  /**
+   * @return true when the given byte completes a match of the pattern.
+   */
+  boolean feed(byte b) {
+    if (matchedLength == pattern.length) {
+      matchedLength = fallbacks[matchedLength - 1];
+    }
+    while (matchedLength > 0 && b != pattern[matchedLength]) {
+      matchedLength = fallbacks[matchedLength - 1];
+    }
+    if (b == pattern[matchedLength]) {
+      matchedLength++;
+    }
+    return matchedLength == pattern.length;
+  }
+
+  int getPatternLength() {
+    return pattern.length;
+  }
+
+}
@@ -0,0 +1,95 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ Evaluates a regular expression on the last received bytes of a body, mapping each byte to a char
+ so no charset decoding nor copy of the whole body is needed.
+ */
+class ByteRegexWindow implements CharSequence {
+
+  private final Matcher matcher;
+  private final int window;
+  private final byte[] buffer;
+  private int length;
+  private boolean matched;
+
+  ByteRegexWindow(String regex, int window) {
+    if (window <= 0) {
+      throw new IllegalArgumentException("Invalid regex window " + window);
+    }
+    // bytes are mapped one to one to chars, so the regex needs to be in the same form
+    String bytesRegex = new String(regex.getBytes(StandardCharsets.UTF_8),
+        StandardCharsets.ISO_8859_1);
+    this.matcher = Pattern.compile(bytesRegex).matcher("");
+    this.window = window;
+    this.buffer = new byte[window * 2];
+  }
+
+  /**
+   * @param completeMatch when true, matches which might change with more content (like a greedy
+   * quantifier reaching the end of the received bytes) are not taken until more content arrives
+   * or {@link #end()} is invoked.
+   */
+  void onContent(ByteBuffer content, boolean completeMatch) {
+    int position = content.position();
+    while (position < content.limit() && !matched) {
+      int chunk = Math.min(window, content.limit() - position);
+      if (length + chunk > buffer.length) {
+        System.arraycopy(buffer, length - window, buffer, 0, window);
+        length = window;
+      }
+      for (int i = 0; i < chunk; i++) {
+        buffer[length++] = content.get(position++);
+      }
+      matched = matcher.reset(this).find() && (!completeMatch || !matcher.hitEnd());
+    }
+  }
+
+  void end() {
+    if (!matched) {
+      matched = matcher.reset(this).find();
+    }
+  }
+
+  boolean isMatched() {
+    return matched;
+  }
+
+  /**
+   * @return the given group of the match decoded as UTF-8, or null if the group didn't match.
+   */
+  String group(int group) {
+    String ret = matcher.group(group);
+    return ret == null ? null
+        : new String(ret.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+  }
+
+  int groupCount() {
+    return matcher.groupCount();
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) (buffer[index] & 0xff);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+  @Override
+  public String toString() {
+    return subSequence(0, length).toString();
+  }
+
+}
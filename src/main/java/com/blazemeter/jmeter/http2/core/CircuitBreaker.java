@@ -0,0 +1,87 @@
+package com.blazemeter.jmeter.http2.core;
+
+/**
+ * Tracks consecutive connection failures to a destination and rejects requests while the
+ * destination is considered down.
+ *
+ * <p>After a number of consecutive connection failures the breaker opens and rejects all requests
+ * until a cool down time passes. Then it lets a limited number of probe requests through: the
+ * breaker closes as soon as one of them connects, or opens again if one of them fails. Probes
+ * which end without connecting nor failing to connect (for example, when interrupted) open the
+ * breaker again, so they don't keep the probe slots taken.
+ */
+public class CircuitBreaker {
+
+  private final int failureThreshold;
+  private final long coolDownMillis;
+  private final int halfOpenProbes;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openTime;
+  private int probes;
+
+  public CircuitBreaker(int failureThreshold, long coolDownMillis, int halfOpenProbes) {
+    this.failureThreshold = failureThreshold;
+    this.coolDownMillis = coolDownMillis;
+    this.halfOpenProbes = halfOpenProbes;
+  }
+
+  public synchronized Permit tryAcquire() {
+    if (state == State.OPEN) {
+      if (System.currentTimeMillis() - openTime < coolDownMillis) {
+        return Permit.REJECTED;
+      }
+      state = State.HALF_OPEN;
+      probes = 0;
+    }
+    if (state == State.HALF_OPEN) {
+      if (probes >= halfOpenProbes) {
+        return Permit.REJECTED;
+      }
+      probes++;
+      return Permit.PROBE;
+    }
+    return Permit.ACQUIRED;
+  }
+
+  public synchronized void onConnected() {
+    consecutiveFailures = 0;
+    state = State.CLOSED;
+  }
+
+  public synchronized void onConnectFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openTime = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Invoked when a probe ends without knowing if the destination is reachable, to open the
+   * breaker again (waiting a new cool down) instead of leaving its probe slot taken.
+   */
+  public synchronized void onProbeWithoutOutcome() {
+    if (state == State.HALF_OPEN) {
+      state = State.OPEN;
+      openTime = System.currentTimeMillis();
+    }
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  public enum Permit {
+    REJECTED,
+    ACQUIRED,
+    PROBE
+  }
+
+  private enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+}
@@ -0,0 +1,11 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.IOException;
+
+public class CircuitBreakerOpenException extends IOException {
+
+  public CircuitBreakerOpenException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,336 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.compression.CompressionPool;
+import org.eclipse.jetty.util.compression.DeflaterPool;
+
+/**
+ * Request content compressing (with gzip or deflate Content-Encoding) another content while it
+ * is sent, so the uncompressed body doesn't need to be in memory.
+ *
+ * <p>Deflaters are taken from shared pools and compressed chunks from the client buffer pool.
+ * Bodies already in memory can instead be compressed at once with {@link #compress}, which allows
+ * keeping the compressed body when it doesn't change between requests.
+ */
+public class CompressedRequestContent implements Request.Content {
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final DeflaterPool GZIP_DEFLATER_POOL = buildDeflaterPool(true);
+  private static final DeflaterPool DEFLATE_DEFLATER_POOL = buildDeflaterPool(false);
+  private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0,
+      0, 0, 0, 0, 0, 0};
+  private final Request.Content content;
+  private final boolean gzip;
+  private final ByteBufferPool bufferPool;
+  private volatile long rawSize;
+
+  public CompressedRequestContent(Request.Content content, String encoding,
+      ByteBufferPool bufferPool) {
+    this.content = content;
+    this.gzip = isGzip(encoding);
+    this.bufferPool = bufferPool;
+  }
+
+  private static DeflaterPool buildDeflaterPool(boolean nowrap) {
+    DeflaterPool ret = new DeflaterPool(CompressionPool.DEFAULT_CAPACITY,
+        Deflater.DEFAULT_COMPRESSION, nowrap);
+    try {
+      ret.start();
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not start deflater pool", e);
+    }
+    return ret;
+  }
+
+  private static boolean isGzip(String encoding) {
+    switch (encoding) {
+      case "gzip":
+        return true;
+      case "deflate":
+        return false;
+      default:
+        throw new IllegalArgumentException("Unsupported request compression " + encoding);
+    }
+  }
+
+  public static byte[] compress(String encoding, byte[] body) {
+    ByteArrayOutputStream ret = new ByteArrayOutputStream(body.length / 2 + 64);
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    Compressor compressor = new Compressor(isGzip(encoding));
+    try {
+      compressor.compress(ByteBuffer.wrap(body), true, () -> {
+        if (!buffer.hasRemaining()) {
+          ret.write(buffer.array(), 0, buffer.position());
+          buffer.clear();
+        }
+        return buffer;
+      });
+    } finally {
+      compressor.release();
+    }
+    ret.write(buffer.array(), 0, buffer.position());
+    return ret.toByteArray();
+  }
+
+  /**
+   * @return the length of the uncompressed body, or -1 when it is not known.
+   */
+  public long getRawLength() {
+    return content.getLength();
+  }
+
+  /**
+   * @return the number of bytes of the uncompressed body sent in the last subscription.
+   */
+  public long getRawSize() {
+    return rawSize;
+  }
+
+  @Override
+  public String getContentType() {
+    return content.getContentType();
+  }
+
+  @Override
+  public long getLength() {
+    return -1;
+  }
+
+  @Override
+  public boolean isReproducible() {
+    return content.isReproducible();
+  }
+
+  @Override
+  public Subscription subscribe(Consumer consumer, boolean emitInitialContent) {
+    return new CompressingSubscription(consumer, emitInitialContent);
+  }
+
+  @Override
+  public void fail(Throwable failure) {
+    content.fail(failure);
+  }
+
+  private interface OutputSink {
+
+    /**
+     * @return a buffer, in fill mode, with space for more compressed bytes.
+     */
+    ByteBuffer space();
+
+  }
+
+  private static class Compressor {
+
+    private final boolean gzip;
+    private final CompressionPool<Deflater>.Entry deflater;
+    private final CRC32 crc = new CRC32();
+    private boolean headerWritten;
+    private boolean released;
+    private long rawSize;
+
+    private Compressor(boolean gzip) {
+      this.gzip = gzip;
+      this.deflater = (gzip ? GZIP_DEFLATER_POOL : DEFLATE_DEFLATER_POOL).acquire();
+    }
+
+    private void compress(ByteBuffer input, boolean last, OutputSink output) {
+      if (gzip && !headerWritten) {
+        write(GZIP_HEADER, output);
+        headerWritten = true;
+      }
+      rawSize += input.remaining();
+      if (gzip) {
+        crc.update(input.duplicate());
+      }
+      Deflater compressor = deflater.get();
+      compressor.setInput(input);
+      while (!compressor.needsInput()) {
+        compressor.deflate(output.space());
+      }
+      if (last) {
+        compressor.finish();
+        while (!compressor.finished()) {
+          compressor.deflate(output.space());
+        }
+        if (gzip) {
+          writeInt((int) crc.getValue(), output);
+          writeInt((int) rawSize, output);
+        }
+        release();
+      }
+    }
+
+    private void write(byte[] bytes, OutputSink output) {
+      for (byte b : bytes) {
+        output.space().put(b);
+      }
+    }
+
+    private void writeInt(int value, OutputSink output) {
+      for (int i = 0; i < Integer.BYTES; i++) {
+        output.space().put((byte) (value >>> (i * 8)));
+      }
+    }
+
+    private void release() {
+      if (!released) {
+        released = true;
+        deflater.release();
+      }
+    }
+
+  }
+
+  /*
+   Compressed chunks are queued and delivered one per demand. When there is none, more content is
+   demanded to the compressed content, which may provide it right away or later, so the state is
+   guarded and only one thread delivers content at a time.
+   */
+  private class CompressingSubscription implements Subscription, Consumer, OutputSink {
+
+    private final Consumer consumer;
+    private final Subscription source;
+    private final Compressor compressor = new Compressor(gzip);
+    private final Queue<ByteBuffer> output = new ArrayDeque<>();
+    private ByteBuffer buffer;
+    private boolean iterating;
+    private boolean demanded;
+    private boolean waitingSource;
+    private boolean sourceCompleted;
+    private boolean completed;
+    private Throwable failure;
+
+    private CompressingSubscription(Consumer consumer, boolean emitInitialContent) {
+      this.consumer = consumer;
+      this.source = content.subscribe(this, emitInitialContent);
+    }
+
+    @Override
+    public void demand() {
+      synchronized (this) {
+        demanded = true;
+      }
+      iterate();
+    }
+
+    private void iterate() {
+      synchronized (this) {
+        if (iterating) {
+          return;
+        }
+        iterating = true;
+      }
+      while (true) {
+        ByteBuffer chunk = null;
+        boolean last = false;
+        boolean demandSource = false;
+        synchronized (this) {
+          if (!demanded || completed || failure != null) {
+            iterating = false;
+            return;
+          }
+          if (!output.isEmpty() || sourceCompleted) {
+            chunk = output.poll();
+            last = sourceCompleted && output.isEmpty();
+            completed = last;
+            demanded = false;
+          } else if (!waitingSource) {
+            waitingSource = true;
+            demandSource = true;
+          } else {
+            iterating = false;
+            return;
+          }
+        }
+        if (demandSource) {
+          source.demand();
+        } else if (chunk != null) {
+          ByteBuffer delivered = chunk;
+          consumer.onContent(delivered, last,
+              Callback.from(() -> bufferPool.release(delivered),
+                  e -> bufferPool.release(delivered)));
+        } else {
+          consumer.onContent(BufferUtil.EMPTY_BUFFER, true, Callback.NOOP);
+        }
+      }
+    }
+
+    @Override
+    public void onContent(ByteBuffer content, boolean last, Callback callback) {
+      try {
+        synchronized (this) {
+          compressor.compress(content, last, this);
+          if (last) {
+            flushBuffer();
+            rawSize = compressor.rawSize;
+          }
+          waitingSource = false;
+          sourceCompleted = last;
+        }
+        callback.succeeded();
+      } catch (RuntimeException e) {
+        callback.failed(e);
+        onFailure(e);
+        return;
+      }
+      iterate();
+    }
+
+    @Override
+    public ByteBuffer space() {
+      if (buffer != null && !buffer.hasRemaining()) {
+        flushBuffer();
+      }
+      if (buffer == null) {
+        buffer = bufferPool.acquire(BUFFER_SIZE, false);
+        BufferUtil.clearToFill(buffer);
+      }
+      return buffer;
+    }
+
+    private void flushBuffer() {
+      if (buffer == null) {
+        return;
+      }
+      BufferUtil.flipToFlush(buffer, 0);
+      if (buffer.hasRemaining()) {
+        output.add(buffer);
+      } else {
+        bufferPool.release(buffer);
+      }
+      buffer = null;
+    }
+
+    @Override
+    public void onFailure(Throwable failure) {
+      synchronized (this) {
+        if (this.failure != null) {
+          return;
+        }
+        this.failure = failure;
+        compressor.release();
+      }
+      consumer.onFailure(failure);
+    }
+
+    @Override
+    public void fail(Throwable failure) {
+      source.fail(failure);
+      synchronized (this) {
+        compressor.release();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,33 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.jorphan.util.JOrphanUtils;
+
+/**
+ * Computes the digest of a response body chunk by chunk, so the body doesn't need to be kept in
+ * memory to get its hash.
+ */
+public class DigestContentConsumer implements ResponseContentConsumer {
+
+  private final MessageDigest digest;
+
+  public DigestContentConsumer(String algorithm) throws NoSuchAlgorithmException {
+    digest = MessageDigest.getInstance(algorithm);
+  }
+
+  @Override
+  public void onContent(ByteBuffer content) {
+    digest.update(content);
+  }
+
+  /**
+   * @return the digest in hexadecimal, in the same format used by JMeter when saving responses as
+   * MD5 hash.
+   */
+  public byte[] getHexDigest() {
+    return JOrphanUtils.baToHexBytes(digest.digest());
+  }
+
+}
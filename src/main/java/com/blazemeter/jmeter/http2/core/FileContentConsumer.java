@@ -0,0 +1,49 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a response body to a file as it is received, so downloads of any size can be done
+ * without keeping the body in memory.
+ *
+ * <p>Received buffers are written directly to the file channel, without copying them to
+ * intermediate arrays.
+ */
+public class FileContentConsumer implements ResponseContentConsumer, Closeable {
+
+  private final Path path;
+  private final FileChannel channel;
+
+  public FileContentConsumer(Path path) throws IOException {
+    this.path = path;
+    Path parent = path.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  @Override
+  public void onContent(ByteBuffer content) throws IOException {
+    while (content.hasRemaining()) {
+      channel.write(content);
+    }
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
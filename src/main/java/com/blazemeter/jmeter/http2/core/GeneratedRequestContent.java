@@ -0,0 +1,161 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import org.eclipse.jetty.client.api.Request.Content.Consumer;
+import org.eclipse.jetty.client.api.Request.Content.Subscription;
+import org.eclipse.jetty.client.util.AbstractRequestContent;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * Request content generated while it is sent, so bodies of any size can be uploaded without
+ * keeping them in memory or in files.
+ *
+ * <p>Each chunk is generated in a buffer taken from the pool only when the transport demands more
+ * content (which, for HTTP/2, depends on the flow control window), and the buffer is returned to
+ * the pool once it is written. The content is reproducible, generating the same bytes each time
+ * the request is sent (for example, when following redirects or authenticating).
+ */
+public class GeneratedRequestContent extends AbstractRequestContent {
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private final BodyType bodyType;
+  private final byte[] pattern;
+  private final long seed;
+  private final long length;
+  private final ByteBufferPool bufferPool;
+
+  /**
+   * @param pattern for RANDOM the seed (or empty for 0), for TEMPLATE the text repeated along the
+   * body, and for JSON_ARRAY the record repeated in the array.
+   * @param count for RANDOM and TEMPLATE the size of the body in bytes, and for JSON_ARRAY the
+   * number of records.
+   */
+  public GeneratedRequestContent(String contentType, BodyType bodyType, String pattern,
+      long count, ByteBufferPool bufferPool) {
+    super(contentType);
+    this.bodyType = bodyType;
+    this.bufferPool = bufferPool;
+    if (bodyType == BodyType.RANDOM) {
+      this.pattern = null;
+      this.seed = pattern.isEmpty() ? 0 : Long.parseLong(pattern);
+    } else if (pattern.isEmpty()) {
+      throw new IllegalArgumentException("No pattern for generated body " + bodyType);
+    } else {
+      this.pattern = pattern.getBytes(StandardCharsets.UTF_8);
+      this.seed = 0;
+    }
+    this.length = bodyType == BodyType.JSON_ARRAY
+        ? 2 + count * this.pattern.length + Math.max(count - 1, 0) : count;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public boolean isReproducible() {
+    return true;
+  }
+
+  @Override
+  protected Subscription newSubscription(Consumer consumer, boolean emitInitialContent) {
+    return new GeneratingSubscription(consumer, emitInitialContent);
+  }
+
+  public enum BodyType {
+    RANDOM,
+    TEMPLATE,
+    JSON_ARRAY
+  }
+
+  private class GeneratingSubscription extends AbstractSubscription {
+
+    private final SplittableRandom random = new SplittableRandom(seed);
+    private long position;
+
+    private GeneratingSubscription(Consumer consumer, boolean emitInitialContent) {
+      super(consumer, emitInitialContent);
+    }
+
+    @Override
+    protected boolean produceContent(Producer producer) {
+      if (position >= length) {
+        return producer.produce(BufferUtil.EMPTY_BUFFER, true, Callback.NOOP);
+      }
+      int chunkSize = (int) Math.min(BUFFER_SIZE, length - position);
+      ByteBuffer buffer = bufferPool.acquire(chunkSize, false);
+      BufferUtil.clearToFill(buffer);
+      buffer.limit(chunkSize);
+      fill(buffer);
+      BufferUtil.flipToFlush(buffer, 0);
+      position += chunkSize;
+      return producer.produce(buffer, position == length,
+          Callback.from(() -> bufferPool.release(buffer), e -> bufferPool.release(buffer)));
+    }
+
+    private void fill(ByteBuffer buffer) {
+      switch (bodyType) {
+        case RANDOM:
+          while (buffer.remaining() >= Long.BYTES) {
+            buffer.putLong(random.nextLong());
+          }
+          while (buffer.hasRemaining()) {
+            buffer.put((byte) random.nextInt());
+          }
+          break;
+        case TEMPLATE:
+          fillPattern(buffer);
+          break;
+        case JSON_ARRAY:
+          fillJsonArray(buffer);
+          break;
+        default:
+          throw new IllegalStateException("Unsupported generated body " + bodyType);
+      }
+    }
+
+    private void fillPattern(ByteBuffer buffer) {
+      int offset = (int) (position % pattern.length);
+      while (buffer.hasRemaining()) {
+        int chunk = Math.min(buffer.remaining(), pattern.length - offset);
+        buffer.put(pattern, offset, chunk);
+        offset = 0;
+      }
+    }
+
+    /*
+     The array is seen as '[' followed by "record," units (the last one without the comma) and
+     ']', so any position of it can be generated without generating the previous ones.
+     */
+    private void fillJsonArray(ByteBuffer buffer) {
+      long pos = position;
+      long unitSize = pattern.length + 1L;
+      while (buffer.hasRemaining()) {
+        if (pos == 0) {
+          buffer.put((byte) '[');
+          pos++;
+        } else if (pos == length - 1) {
+          buffer.put((byte) ']');
+          pos++;
+        } else {
+          int offset = (int) ((pos - 1) % unitSize);
+          if (offset < pattern.length) {
+            int chunk = Math.min(buffer.remaining(), pattern.length - offset);
+            buffer.put(pattern, offset, chunk);
+            pos += chunk;
+          } else {
+            buffer.put((byte) ',');
+            pos++;
+          }
+        }
+      }
+    }
+
+  }
+
+}
@@ -1,27 +1,42 @@
 package com.blazemeter.jmeter.http2.core;
 
+import com.blazemeter.jmeter.http2.core.GeneratedRequestContent.BodyType;
+import com.blazemeter.jmeter.http2.core.UploadFileCache.UploadFile;
 import com.blazemeter.jmeter.http2.sampler.HTTP2Sampler;
-import java.io.ByteArrayInputStream;
+import com.helger.commons.annotation.VisibleForTesting;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
+import javax.net.ssl.SSLContext;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.assertions.AssertionResult;
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.gui.GuiPackage;
 import org.apache.jmeter.protocol.http.control.AuthManager;
 import org.apache.jmeter.protocol.http.control.Authorization;
 import org.apache.jmeter.protocol.http.control.CookieManager;
@@ -31,37 +46,49 @@ import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
 import org.apache.jmeter.protocol.http.util.HTTPArgument;
 import org.apache.jmeter.protocol.http.util.HTTPConstants;
 import org.apache.jmeter.protocol.http.util.HTTPFileArg;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.services.FileServer;
 import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jmeter.util.JMeterUtils;
+import org.eclipse.jetty.client.ConnectionPool;
+import org.eclipse.jetty.client.ConnectionPool.Multiplexable;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.HttpDestination;
 import org.eclipse.jetty.client.HttpProxy;
 import org.eclipse.jetty.client.HttpRequest;
+import org.eclipse.jetty.client.MultiplexConnectionPool;
+import org.eclipse.jetty.client.Origin;
 import org.eclipse.jetty.client.Origin.Address;
 import org.eclipse.jetty.client.api.AuthenticationStore;
+import org.eclipse.jetty.client.api.Connection;
 import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Request.Content;
+import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.dynamic.HttpClientTransportDynamic;
 import org.eclipse.jetty.client.http.HttpClientConnectionFactory;
 import org.eclipse.jetty.client.util.AbstractAuthentication;
 import org.eclipse.jetty.client.util.BasicAuthentication;
+import org.eclipse.jetty.client.util.BytesRequestContent;
 import org.eclipse.jetty.client.util.DigestAuthentication;
 import org.eclipse.jetty.client.util.FormRequestContent;
-import org.eclipse.jetty.client.util.FutureResponseListener;
 import org.eclipse.jetty.client.util.MultiPartRequestContent;
-import org.eclipse.jetty.client.util.PathRequestContent;
 import org.eclipse.jetty.client.util.StringRequestContent;
 import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpFields.Mutable;
 import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpHeaderValue;
+import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.HttpVersion;
 import org.eclipse.jetty.http2.client.HTTP2Client;
 import org.eclipse.jetty.http2.client.http.ClientConnectionFactoryOverHTTP2;
 import org.eclipse.jetty.io.ClientConnectionFactory;
 import org.eclipse.jetty.io.ClientConnector;
-import org.eclipse.jetty.io.MappedByteBufferPool;
 import org.eclipse.jetty.util.Fields;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -69,8 +96,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class HTTP2JettyClient {
-  public static final MappedByteBufferPool BUFFER_POOL = new MappedByteBufferPool(
-      JMeterUtils.getPropDefault("httpJettyClient.byteBufferPoolFactor", 4));
+  public static final InstrumentedByteBufferPool BUFFER_POOL = new InstrumentedByteBufferPool(
+      JMeterUtils.getPropDefault("httpJettyClient.byteBufferPoolFactor", 4),
+      JMeterUtils.getPropDefault("httpJettyClient.byteBufferPool.maxBucketSize", -1),
+      JMeterUtils.getPropDefault("httpJettyClient.byteBufferPool.maxHeapMemory", 0L),
+      JMeterUtils.getPropDefault("httpJettyClient.byteBufferPool.maxDirectMemory", 0L));
+  public static final UploadFileCache UPLOAD_FILE_CACHE = new UploadFileCache(
+      JMeterUtils.getPropDefault("httpJettyClient.uploadFileCache.maxSize", 256L * 1024 * 1024));
+  public static final String PROTOCOL_VARIABLE = "HTTP2Sampler.protocol";
+  public static final String HTTP1_FALLBACK_VARIABLE = "HTTP2Sampler.http1Fallback";
+  public static final String TRUNCATED_VARIABLE = "HTTP2Sampler.truncated";
+  public static final String RESPONSE_DIGEST_VARIABLE = "HTTP2Sampler.responseDigest";
+  public static final String DECODED_BODY_SIZE_VARIABLE = "HTTP2Sampler.decodedBodySize";
+  public static final String RAW_REQUEST_BODY_SIZE_VARIABLE = "HTTP2Sampler.rawRequestBodySize";
+  public static final String CONTINUE_WAIT_TIME_VARIABLE = "HTTP2Sampler.continueWaitTime";
   private static final Logger LOG = LoggerFactory.getLogger(HTTP2JettyClient.class);
   private static final Set<String> SUPPORTED_METHODS = new HashSet<>(Arrays
       .asList(HTTPConstants.GET, HTTPConstants.POST, HTTPConstants.PUT, HTTPConstants.PATCH,
@@ -80,25 +119,40 @@ public class HTTP2JettyClient {
   private static final boolean ADD_CONTENT_TYPE_TO_POST_IF_MISSING = JMeterUtils.getPropDefault(
       "http.post_add_content_type_if_missing", false);
   private static final Pattern PORT_PATTERN = Pattern.compile("\\d+");
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+  private static final String BINARY_BODY_BASE64 = "BASE64";
+  private static final String BINARY_BODY_HEX = "HEX";
+  private static final String BINARY_BODY_VARIABLE = "VARIABLE";
   private static final String MULTI_PART_SEPARATOR = "--";
   private static final String LINE_SEPARATOR = "\r\n";
   private static final String DEFAULT_FILE_MIME_TYPE = "application/octet-stream";
+  private static final String JSON_MIME_TYPE = "application/json";
+  private static final ThreadPoolExecutor STOP_EXECUTOR = buildStopExecutor();
   private int requestTimeout = 0;
   private int maxBufferSize = 2 * 1024 * 1024;
   private int maxThreads = 5;
   private int minThreads = 1;
   private int maxRequestsQueuedPerDestination = Short.MAX_VALUE;
   private int maxConnectionsPerDestination = 1;
+  private int maxConnectionsPerHttp1Destination = 6;
   private boolean strictEventOrdering = false;
   private boolean removeIdleDestinations = true;
   private int idleTimeout = 30000;
+  private boolean leanResults = false;
+  private int maxBytesToStorePerRequest = 0;
   private final HttpClient httpClient;
+  private final SslContextFactory.Client sslContextFactory;
+  private final Set<Connection> openConnections = ConcurrentHashMap.newKeySet();
+  private final Set<Request> inFlightRequests = ConcurrentHashMap.newKeySet();
+  private final AtomicLong committedRequests = new AtomicLong();
   private boolean http1UpgradeRequired;
+  private List<AuthEntry> authEntries;
+  private boolean authPreemptiveBasic;
 
   public HTTP2JettyClient(boolean http1UpgradeRequired) {
     loadProperties();
     ClientConnector clientConnector = new ClientConnector();
-    SslContextFactory.Client sslContextFactory = new JMeterJettySslContextFactory();
+    sslContextFactory = new JMeterJettySslContextFactory();
     clientConnector.setSslContextFactory(sslContextFactory);
     QueuedThreadPool queuedThreadPool = new QueuedThreadPool(maxThreads);
     queuedThreadPool.setMinThreads(minThreads);
@@ -112,6 +166,7 @@ public class HTTP2JettyClient {
         ? new ClientConnectionFactory.Info[]{http11, http2}
         : new ClientConnectionFactory.Info[]{http2, http11};
     HttpClientTransport transport = new HttpClientTransportDynamic(clientConnector, protocols);
+    transport.setConnectionPoolFactory(this::buildConnectionPool);
     this.httpClient = new HttpClient(transport);
     this.httpClient.setUserAgentField(null); // No set UA header
     this.httpClient.setByteBufferPool(HTTP2JettyClient.BUFFER_POOL);
@@ -127,10 +182,29 @@ public class HTTP2JettyClient {
     this(false);
   }
 
+  private static ThreadPoolExecutor buildStopExecutor() {
+    int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), HTTP2JettyClient::buildStopThread);
+    ret.allowCoreThreadTimeOut(true);
+    return ret;
+  }
+
+  private static Thread buildStopThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, "HttpClientStopper");
+    thread.setDaemon(true);
+    return thread;
+  }
+
   public static void clearBufferPool() {
+    LOG.info("Buffer pool stats: {}", HTTP2JettyClient.BUFFER_POOL.getStats());
     HTTP2JettyClient.BUFFER_POOL.clear();
   }
 
+  public static void clearUploadFileCache() {
+    UPLOAD_FILE_CACHE.clear();
+  }
+
   public void loadProperties() {
     requestTimeout = JMeterUtils.getPropDefault("HTTPSampler.response_timeout", 0);
     maxBufferSize =
@@ -148,6 +222,10 @@ public class HTTP2JettyClient {
     maxConnectionsPerDestination =
         Integer.parseInt(JMeterUtils.getPropDefault("httpJettyClient.maxConnectionsPerDestination",
             String.valueOf(maxConnectionsPerDestination)));
+    maxConnectionsPerHttp1Destination =
+        Integer.parseInt(JMeterUtils.getPropDefault(
+            "httpJettyClient.maxConnectionsPerHttp1Destination",
+            String.valueOf(maxConnectionsPerHttp1Destination)));
     strictEventOrdering =
         Boolean.parseBoolean(JMeterUtils.getPropDefault("httpJettyClient.strictEventOrdering",
             String.valueOf(strictEventOrdering)));
@@ -157,6 +235,52 @@ public class HTTP2JettyClient {
     idleTimeout =
         Integer.parseInt(JMeterUtils.getPropDefault("httpJettyClient.idleTimeout",
             String.valueOf(idleTimeout)));
+    leanResults = isLeanResultsMode(JMeterUtils.getPropDefault("httpJettyClient.leanResults",
+        String.valueOf(leanResults)));
+    maxBytesToStorePerRequest =
+        JMeterUtils.getPropDefault("httpsampler.max_bytes_to_store_per_request", 0);
+  }
+
+  /*
+   In lean mode the request headers, sampler data and response headers strings are not built,
+   since in non GUI runs they are only needed when saved in the results file (or used by header
+   extractors and assertions, which is why auto detection has to be enabled explicitly).
+
+   Auto detection only checks the save settings of jmeter.properties, since clients are not aware
+   of the listeners of the test plan and their own save configurations.
+   */
+  private static boolean isLeanResultsMode(String mode) {
+    if ("auto".equalsIgnoreCase(mode)) {
+      SampleSaveConfiguration saveConfig = SampleSaveConfiguration.staticConfig();
+      return GuiPackage.getInstance() == null && !saveConfig.saveAsXml()
+          && !saveConfig.saveRequestHeaders() && !saveConfig.saveResponseHeaders()
+          && !saveConfig.saveSamplerData() && !saveConfig.saveResponseData();
+    }
+    return Boolean.parseBoolean(mode);
+  }
+
+  /*
+   HTTP/1.1 connections can't multiplex requests, so destinations that end up using HTTP/1.1 get
+   their own (usually bigger) limit, while HTTP/2 destinations keep using a single connection.
+   When HTTP/1.1 and HTTP/2 are both offered (with ALPN or with an h2c upgrade) the protocol is
+   only known once a connection is established, so no other connection is opened until then.
+   */
+  private ConnectionPool buildConnectionPool(HttpDestination destination) {
+    Origin.Protocol protocol = destination.getOrigin().getProtocol();
+    if (protocol == null) {
+      return new TrackedConnectionPool(destination, getMaxConnections(http1UpgradeRequired),
+          false);
+    }
+    List<String> protocols = protocol.getProtocols();
+    boolean http2 = protocols.stream().anyMatch(p -> p.startsWith("h2"));
+    if (http2 && protocols.contains("http/1.1")) {
+      return new TrackedConnectionPool(destination, 1, true);
+    }
+    return new TrackedConnectionPool(destination, getMaxConnections(!http2), false);
+  }
+
+  private int getMaxConnections(boolean http1) {
+    return http1 ? maxConnectionsPerHttp1Destination : maxConnectionsPerDestination;
   }
 
   public void start() throws Exception {
@@ -170,17 +294,47 @@ public class HTTP2JettyClient {
     httpClient.stop();
   }
 
+  /**
+   * Aborts the requests in progress (resetting their streams) and stops the client in a shared
+   * pool of threads, so several clients can be stopped in parallel.
+   *
+   * @return a future completed when the client is stopped.
+   */
+  public CompletableFuture<Void> stopAsync() {
+    abortRequests(new AsynchronousCloseException());
+    return CompletableFuture.runAsync(() -> {
+      try {
+        stop();
+      } catch (Exception e) {
+        LOG.error("Error while closing connection", e);
+      }
+    }, STOP_EXECUTOR);
+  }
+
+  public boolean abortRequests(Throwable cause) {
+    boolean aborted = false;
+    for (Request request : inFlightRequests) {
+      aborted |= request.abort(cause);
+    }
+    return aborted;
+  }
+
   public HTTPSampleResult sample(HTTP2Sampler sampler, HTTPSampleResult result,
       boolean areFollowingRedirect, int depth) throws Exception {
     setAuthManager(sampler);
 
     URL url = result.getURL();
-    HttpRequest request = buildRequest(url, result);
+    RequestPlan plan = sampler.getRequestPlan();
+    HttpRequest request = buildRequest(plan.getUri(url), result);
     setTimeouts(sampler, request);
     request.followRedirects(sampler.getAutoRedirects());
     String method = result.getHTTPMethod();
     request.method(method);
-    setHeaders(request, url, sampler.getHeaderManager());
+    setHeaders(request, url, sampler.getHeaderManager(), plan);
+    if (sampler.isDecodeResponseBody()) {
+      addHeaderIfMissing(HttpHeader.ACCEPT_ENCODING, "gzip, deflate",
+          (Mutable) request.getHeaders());
+    }
 
     CookieManager cookieManager = sampler.getCookieManager();
     if (cookieManager != null) {
@@ -193,7 +347,7 @@ public class HTTP2JettyClient {
 
     result.sampleStart();
 
-    JettyCacheManager cacheManager = JettyCacheManager.fromCacheManager(sampler.getCacheManager());
+    JettyCacheManager cacheManager = plan.getCacheManager(sampler.getCacheManager());
     if (cacheManager != null) {
       cacheManager.setHeaders(url, request);
       if (HTTPConstants.GET.equalsIgnoreCase(method) && cacheManager.inCache(url,
@@ -203,14 +357,85 @@ public class HTTP2JettyClient {
     }
 
     setBody(request, sampler, result);
+    setExpectContinue(request, sampler);
     if (!isSupportedMethod(method)) {
       throw new UnsupportedOperationException(String.format("Method %s is not supported", method));
     }
+    if (sampler.getRangeSegments() > 1 && HTTPConstants.GET.equals(method)
+        && sampleRanges(request, sampler, result)) {
+      return sampler.resultProcessing(areFollowingRedirect, depth, result);
+    }
 
-    ContentResponse contentResponse = send(request);
+    DigestContentConsumer digest = buildDigestContentConsumer(sampler);
+    FileContentConsumer responseFile = buildFileContentConsumer(sampler, depth);
+    StreamingResponseListener listener = new StreamingResponseListener(request, maxBufferSize,
+        sampler.isDiscardResponseBody() || digest != null || responseFile != null,
+        sampler.getCaptureLimit());
+    listener.setAbortAfterBytes(sampler.getAbortAfterBytes());
+    listener.setAbortAfterMillis(sampler.getAbortAfterMillis(), httpClient.getScheduler());
+    if (sampler.isDecodeResponseBody()) {
+      listener.enableContentDecoding(httpClient.getByteBufferPool());
+    }
+    if (digest != null) {
+      listener.addContentConsumer(digest);
+    }
+    StreamingAssertion assertion = buildStreamingAssertion(sampler);
+    if (assertion != null) {
+      listener.addContentConsumer(assertion);
+    }
+    StreamingExtractor extractor = buildStreamingExtractor(sampler);
+    if (extractor != null) {
+      listener.addContentConsumer(extractor);
+    }
+    ResponseCapturePolicy capturePolicy = buildCapturePolicy(sampler, assertion != null);
+    if (capturePolicy != null) {
+      listener.setDiscardBodyCondition(r -> capturePolicy.isDiscardedOnHeaders(r.getStatus(),
+          r.getHeaders().get(HttpHeader.CONTENT_TYPE)));
+    }
+    ContentResponse contentResponse;
+    if (responseFile != null) {
+      listener.addContentConsumer(responseFile);
+      try {
+        contentResponse = send(request, listener);
+      } finally {
+        responseFile.close();
+      }
+    } else {
+      contentResponse = send(request, listener);
+    }
     http1UpgradeRequired = contentResponse.getVersion() != HttpVersion.HTTP_2;
-    result.setRequestHeaders(buildHeadersString(request.getHeaders()));
-    setResultContentResponse(result, contentResponse, sampler);
+    setProtocolVariables(contentResponse.getVersion());
+    setVariable(TRUNCATED_VARIABLE,
+        String.valueOf(listener.isTruncated() || listener.isEarlyAborted()));
+    setVariable(DECODED_BODY_SIZE_VARIABLE, String.valueOf(listener.getDecodedBodySize()));
+    if (expectsContinue(request)) {
+      setVariable(CONTINUE_WAIT_TIME_VARIABLE, String.valueOf(
+          request.getRequestListeners(SampleTimingListener.class).get(0).getContinueWaitTime()));
+    }
+    if (request.getBody() instanceof CompressedRequestContent) {
+      setVariable(RAW_REQUEST_BODY_SIZE_VARIABLE,
+          String.valueOf(((CompressedRequestContent) request.getBody()).getRawSize()));
+    }
+    if (extractor != null) {
+      String value = extractor.getValue();
+      setVariable(extractor.getVariableName(),
+          value != null ? value : sampler.getStreamingExtractorDefault());
+    }
+    if (responseFile != null && digest != null) {
+      setVariable(RESPONSE_DIGEST_VARIABLE, new String(digest.getHexDigest(),
+          StandardCharsets.US_ASCII));
+    }
+    setResultContentResponse(result, contentResponse, listener.getBodySize(),
+        assertion != null ? assertion.getResult() : null, sampler);
+    if (capturePolicy == null || capturePolicy.isRetained(contentResponse.getStatus(),
+        result.getContentType(), result.isSuccessful(), result.getTime())) {
+      result.setResponseData(buildResponseData(contentResponse, digest, responseFile, sampler));
+      if (!leanResults) {
+        result.setRequestHeaders(buildHeadersString(request.getHeaders()));
+        result.setResponseHeaders(buildResponseHeadersString(contentResponse,
+            result.getResponseMessage()));
+      }
+    }
     saveCookiesInCookieManager(contentResponse, url, sampler.getCookieManager());
 
     if (cacheManager != null) {
@@ -220,15 +445,231 @@ public class HTTP2JettyClient {
     return sampler.resultProcessing(areFollowingRedirect, depth, result);
   }
 
+  /*
+   Downloads the resource as several Range requests sent concurrently, which are multiplexed in
+   the same connection (or spread on several ones, depending on the max connections per
+   destination), so the download is not bound to the flow control window of a single stream.
+
+   A first request of a single byte gets the size of the resource, and when the server doesn't
+   support ranges (or doesn't report the size) false is returned so the resource is downloaded
+   with a regular request. Otherwise, the probe request is reported as the first sub result, and
+   its bytes are included in the sample ones.
+   */
+  private boolean sampleRanges(HttpRequest request, HTTP2Sampler sampler, HTTPSampleResult result)
+      throws Exception {
+    URL url = result.getURL();
+    RangeSegment probe = new RangeSegment(0, 0, result.getSampleLabel() + "-size", url);
+    probe.request = buildRangeRequest(request, probe.result, 0, 0);
+    probe.listener = new StreamingResponseListener(probe.request, maxBufferSize, true, 0);
+    probe.listener.setAbortAfterBytes(0);
+    probe.result.sampleStart();
+    probe.response = send(probe.request, probe.listener);
+    probe.result.sampleEnd();
+    long size = extractRangeResourceSize(probe.response);
+    if (size <= 0) {
+      return false;
+    }
+    setRangeSegmentResult(probe);
+    // only the headers of the probe are needed, so its body is not downloaded
+    probe.result.setSuccessful(true);
+    // the probe gets the first response of the sample
+    long probeOffset = probe.result.getStartTime() - result.getStartTime();
+    result.setConnectTime(probeOffset + probe.result.getConnectTime());
+    result.setLatency(probeOffset + probe.result.getLatency());
+    boolean discardBody = sampler.isDiscardResponseBody();
+    if (!discardBody && size > maxBufferSize) {
+      throw new IllegalArgumentException("Buffering capacity " + maxBufferSize + " exceeded");
+    }
+    int segmentsCount = (int) Math.min(sampler.getRangeSegments(), size);
+    long segmentSize = (size + segmentsCount - 1) / segmentsCount;
+    List<RangeSegment> segments = new ArrayList<>();
+    try {
+      for (long start = 0; start < size; start += segmentSize) {
+        RangeSegment segment = new RangeSegment(start, Math.min(size, start + segmentSize) - 1,
+            result.getSampleLabel() + "-" + segments.size(), url);
+        segment.request = buildRangeRequest(request, segment.result, segment.start, segment.end);
+        segment.request.onComplete(r -> segment.result.sampleEnd());
+        segment.listener = new StreamingResponseListener(segment.request, maxBufferSize,
+            discardBody, 0);
+        segment.result.sampleStart();
+        startSend(segment.request, segment.listener);
+        segments.add(segment);
+      }
+      for (RangeSegment segment : segments) {
+        segment.response = awaitResponse(segment.request, segment.listener);
+      }
+    } finally {
+      for (RangeSegment segment : segments) {
+        if (segment.response == null) {
+          segment.request.abort(new IllegalStateException("Range download failed"));
+        }
+      }
+    }
+    setRangesResult(result, probe, segments, discardBody ? null : new byte[(int) size], sampler);
+    return true;
+  }
+
+  private HttpRequest buildRangeRequest(HttpRequest request, HTTPSampleResult result,
+      long start, long end) {
+    HttpRequest ret = buildRequest(request.getURI(), result);
+    ret.method(HttpMethod.GET);
+    ret.timeout(request.getTimeout(), TimeUnit.MILLISECONDS);
+    ret.followRedirects(request.isFollowRedirects());
+    // ranges of encoded content can't be decoded independently
+    ret.headers(headers -> headers.add(request.getHeaders())
+        .remove(HttpHeader.ACCEPT_ENCODING)
+        .put(HttpHeader.RANGE, "bytes=" + start + "-" + end));
+    return ret;
+  }
+
+  private long extractRangeResourceSize(ContentResponse response) {
+    String contentRange = response.getHeaders().get(HttpHeader.CONTENT_RANGE);
+    if (response.getStatus() != HttpStatus.PARTIAL_CONTENT_206 || contentRange == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+    } catch (NumberFormatException e) {
+      // the size is unknown (*)
+      return -1;
+    }
+  }
+
+  private void setRangesResult(HTTPSampleResult result, RangeSegment probe,
+      List<RangeSegment> segments, byte[] content, HTTP2Sampler sampler) throws IOException {
+    long bodySize = probe.result.getBodySizeAsLong();
+    long headersSize = probe.result.getHeadersSize();
+    long sentBytes = probe.result.getSentBytes();
+    result.addRawSubResult(probe.result);
+    RangeSegment statusSegment = segments.get(0);
+    for (RangeSegment segment : segments) {
+      setRangeSegmentResult(segment);
+      if (content != null) {
+        byte[] segmentContent = segment.response.getContent();
+        System.arraycopy(segmentContent, 0, content, (int) segment.start,
+            (int) Math.min(segmentContent.length, content.length - segment.start));
+      }
+      bodySize += segment.result.getBodySizeAsLong();
+      headersSize += segment.result.getHeadersSize();
+      sentBytes += segment.result.getSentBytes();
+      if (statusSegment.result.isSuccessful() && !segment.result.isSuccessful()) {
+        statusSegment = segment;
+      }
+      result.addRawSubResult(segment.result);
+    }
+    result.sampleEnd();
+    ContentResponse response = statusSegment.response;
+    http1UpgradeRequired = response.getVersion() != HttpVersion.HTTP_2;
+    setProtocolVariables(response.getVersion());
+    String contentType = response.getHeaders().get(HttpHeader.CONTENT_TYPE);
+    if (contentType != null) {
+      result.setContentType(contentType);
+      result.setEncodingAndType(contentType);
+    }
+    result.setResponseCode(statusSegment.result.getResponseCode());
+    result.setResponseMessage(statusSegment.result.getResponseMessage());
+    result.setSuccessful(statusSegment.result.isSuccessful());
+    result.setBodySize(bodySize);
+    result.setHeadersSize((int) headersSize);
+    result.setSentBytes(sentBytes);
+    if (content != null) {
+      result.setResponseData(content);
+    }
+    if (!leanResults) {
+      result.setRequestHeaders(statusSegment.result.getRequestHeaders());
+      result.setResponseHeaders(statusSegment.result.getResponseHeaders());
+    }
+    saveCookiesInCookieManager(response, result.getURL(), sampler.getCookieManager());
+  }
+
+  private void setRangeSegmentResult(RangeSegment segment) {
+    HTTPSampleResult result = segment.result;
+    ContentResponse response = segment.response;
+    result.setResponseCode(String.valueOf(response.getStatus()));
+    String responseMessage = response.getReason() != null ? response.getReason()
+        : HttpStatus.getMessage(response.getStatus());
+    result.setResponseMessage(responseMessage);
+    long bodySize = segment.listener.getBodySize();
+    result.setSuccessful(response.getStatus() == HttpStatus.PARTIAL_CONTENT_206
+        && bodySize == segment.end - segment.start + 1);
+    result.setBodySize(bodySize);
+    result.setHeadersSize((int) computeHeadersSize(buildStatusLine(response, responseMessage),
+        response.getHeaders()));
+    if (!leanResults) {
+      result.setRequestHeaders(buildHeadersString(segment.request.getHeaders()));
+      result.setResponseHeaders(buildResponseHeadersString(response, responseMessage));
+    }
+  }
+
+  private DigestContentConsumer buildDigestContentConsumer(HTTP2Sampler sampler)
+      throws NoSuchAlgorithmException {
+    String algorithm = sampler.getResponseDigestAlgorithm();
+    return algorithm.isEmpty() ? null : new DigestContentConsumer(algorithm);
+  }
+
+  private StreamingAssertion buildStreamingAssertion(HTTP2Sampler sampler) {
+    String patternType = sampler.getStreamingAssertionType();
+    long minSize = sampler.getStreamingAssertionMinSize();
+    long maxSize = sampler.getStreamingAssertionMaxSize();
+    if (patternType.isEmpty() && minSize < 0 && maxSize < 0) {
+      return null;
+    }
+    return new StreamingAssertion(
+        patternType.isEmpty() ? null : StreamingAssertion.PatternType.valueOf(patternType),
+        sampler.getStreamingAssertionPattern(), sampler.getStreamingAssertionWindow(), minSize,
+        maxSize);
+  }
+
+  private ResponseCapturePolicy buildCapturePolicy(HTTP2Sampler sampler,
+      boolean streamingAssertion) {
+    return sampler.isCaptureFailuresOnly() ? new ResponseCapturePolicy(
+        sampler.getCaptureStatusPattern(), sampler.getCaptureMinTime(), sampler.isImageParser(),
+        streamingAssertion) : null;
+  }
+
+  private StreamingExtractor buildStreamingExtractor(HTTP2Sampler sampler) {
+    String type = sampler.getStreamingExtractorType();
+    String variable = sampler.getStreamingExtractorVariable();
+    if (type.isEmpty() || variable.isEmpty()) {
+      return null;
+    }
+    return new StreamingExtractor(StreamingExtractor.ExtractorType.valueOf(type), variable,
+        sampler.getStreamingExtractorExpression(), sampler.getStreamingExtractorRightBoundary());
+  }
+
+  /*
+   Only the main sample (or the last redirect of it) is written to the file, since embedded
+   resources (sampled with a greater depth) would overwrite it.
+   */
+  private FileContentConsumer buildFileContentConsumer(HTTP2Sampler sampler, int depth)
+      throws IOException {
+    String path = sampler.getResponseFilePath();
+    return path.isEmpty() || depth > 0 ? null
+        : new FileContentConsumer(FileServer.getFileServer().getResolvedFile(path).toPath());
+  }
+
   public ContentResponse send(HttpRequest request) throws InterruptedException,
       TimeoutException, ExecutionException {
+    return send(request, new StreamingResponseListener(request, maxBufferSize, false, 0));
+  }
+
+  private ContentResponse send(HttpRequest request, StreamingResponseListener listener)
+      throws InterruptedException, TimeoutException, ExecutionException {
+    startSend(request, listener);
+    return awaitResponse(request, listener);
+  }
+
+  private void startSend(HttpRequest request, StreamingResponseListener listener) {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Sending request: {}", request);
       LOG.debug("Setting max buffer size to {}", maxBufferSize);
     }
-    FutureResponseListener listener =
-        new FutureResponseListener(request, maxBufferSize);
+    inFlightRequests.add(request);
     request.send(listener);
+  }
+
+  private ContentResponse awaitResponse(HttpRequest request, StreamingResponseListener listener)
+      throws InterruptedException, TimeoutException, ExecutionException {
     long getStart = System.currentTimeMillis();
     try {
       if (requestTimeout > 0) {
@@ -237,7 +678,11 @@ public class HTTP2JettyClient {
       } else {
         return listener.get();
       }
+    } catch (InterruptedException e) {
+      request.abort(e);
+      throw e;
     } catch (TimeoutException e) {
+      request.abort(e);
       long endGet = System.currentTimeMillis();
       throw new TimeoutException("The request took more than " + (endGet - getStart)
           + " milliseconds to complete");
@@ -248,30 +693,72 @@ public class HTTP2JettyClient {
         throw (IllegalArgumentException) e.getCause();
       }
       throw e;
+    } finally {
+      inFlightRequests.remove(request);
     }
   }
 
+  private void setProtocolVariables(HttpVersion version) {
+    setVariable(PROTOCOL_VARIABLE, version.asString());
+    setVariable(HTTP1_FALLBACK_VARIABLE, String.valueOf(version != HttpVersion.HTTP_2));
+  }
+
+  private void setVariable(String name, String value) {
+    JMeterVariables variables = JMeterContextService.getContext().getVariables();
+    if (variables != null) {
+      variables.put(name, value);
+    }
+  }
+
+  /*
+   The authentication store is only updated when the auth manager entries change, instead of
+   adding the authentications again on each sample (which made the store grow, and its lookups
+   slower, along the test). Keeping the store also keeps the results of successful Digest
+   authentications, which Jetty applies to next requests under the authentication URL reusing the
+   nonce with an incremented nonce count, so only the first request pays the challenge.
+   */
   private void setAuthManager(HTTP2Sampler sampler) {
     AuthManager authManager = sampler.getAuthManager();
-    if (authManager != null) {
-      StreamSupport.stream(authManager.getAuthObjects().spliterator(), false)
-          .map(j -> (Authorization) j.getObjectValue())
-          .filter(auth -> isSupportedMechanism(auth) && !StringUtils.isEmpty(auth.getURL()))
-          .forEach(this::addAuthenticationToJettyClient);
+    boolean preemptiveBasic = JMeterUtils.getPropDefault("httpJettyClient.auth.preemptive", false);
+    if (authManager == null) {
+      return;
+    }
+    List<AuthEntry> entries = buildAuthEntries(authManager);
+    if (entries.equals(authEntries) && preemptiveBasic == authPreemptiveBasic) {
+      return;
+    }
+    AuthenticationStore authenticationStore = httpClient.getAuthenticationStore();
+    authenticationStore.clearAuthentications();
+    // results may have been obtained with the previous credentials
+    authenticationStore.clearAuthenticationResults();
+    authEntries = entries;
+    authPreemptiveBasic = preemptiveBasic;
+    for (JMeterProperty prop : authManager.getAuthObjects()) {
+      Authorization auth = (Authorization) prop.getObjectValue();
+      if (isSupportedMechanism(auth) && !StringUtils.isEmpty(auth.getURL())) {
+        addAuthenticationToJettyClient(auth, preemptiveBasic);
+      }
     }
   }
 
+  private static List<AuthEntry> buildAuthEntries(AuthManager authManager) {
+    List<AuthEntry> ret = new ArrayList<>();
+    for (JMeterProperty prop : authManager.getAuthObjects()) {
+      ret.add(new AuthEntry((Authorization) prop.getObjectValue()));
+    }
+    return ret;
+  }
+
   private boolean isSupportedMechanism(Authorization auth) {
     String authName = auth.getMechanism().name();
     return authName.equals(AuthManager.Mechanism.BASIC.name())
         || authName.equals(AuthManager.Mechanism.DIGEST.name());
   }
 
-  private void addAuthenticationToJettyClient(Authorization auth) {
+  private void addAuthenticationToJettyClient(Authorization auth, boolean preemptiveBasic) {
     AuthenticationStore authenticationStore = httpClient.getAuthenticationStore();
     String authName = auth.getMechanism().name();
-    if (authName.equals(AuthManager.Mechanism.BASIC.name()) && JMeterUtils.getPropDefault(
-        "httpJettyClient.auth.preemptive", false)) {
+    if (authName.equals(AuthManager.Mechanism.BASIC.name()) && preemptiveBasic) {
       authenticationStore.addAuthenticationResult(
           new BasicAuthentication.BasicResult(URI.create(auth.getURL()), auth.getUser(),
               auth.getPass()));
@@ -285,13 +772,11 @@ public class HTTP2JettyClient {
     }
   }
 
-  private HttpRequest buildRequest(URL url, HTTPSampleResult result) throws URISyntaxException,
-      IllegalArgumentException {
-    HttpRequest request = (HttpRequest) httpClient.newRequest(url.toURI());
-    request.onRequestBegin(r -> result.connectEnd());
-    request.onRequestContent(
-        (r, c) -> result.setSentBytes(result.getSentBytes() + c.limit()));
-    request.onResponseBegin(r -> result.latencyEnd());
+  private HttpRequest buildRequest(URI uri, HTTPSampleResult result) {
+    HttpRequest request = (HttpRequest) httpClient.newRequest(uri);
+    SampleTimingListener timingListener = new SampleTimingListener(result);
+    request.listener(timingListener);
+    request.onResponseBegin(timingListener);
     return request;
   }
 
@@ -306,13 +791,13 @@ public class HTTP2JettyClient {
     }
   }
 
-  private void setHeaders(HttpRequest request, URL url, HeaderManager headerManager) {
+  private void setHeaders(HttpRequest request, URL url, HeaderManager headerManager,
+      RequestPlan plan) {
     if (headerManager != null) {
-      StreamSupport.stream(headerManager.getHeaders().spliterator(), false)
-          .map(prop -> (Header) prop.getObjectValue())
-          .filter(header -> (!header.getName().isEmpty()) && (!HTTPConstants.HEADER_CONTENT_LENGTH
-              .equalsIgnoreCase(header.getName())))
-          .forEach(header -> request.addHeader(createJettyHeader(header, url)));
+      for (HttpField field : plan.getHeaderFields(headerManager, url.getPort(),
+          url.getDefaultPort(), m -> buildHeaderFields(m, url))) {
+        request.addHeader(field);
+      }
     }
     if (http1UpgradeRequired) {
       Mutable headers = ((Mutable) request.getHeaders());
@@ -324,6 +809,47 @@ public class HTTP2JettyClient {
     }
   }
 
+  private List<HttpField> buildHeaderFields(HeaderManager headerManager, URL url) {
+    return StreamSupport.stream(headerManager.getHeaders().spliterator(), false)
+        .map(prop -> (Header) prop.getObjectValue())
+        .filter(header -> (!header.getName().isEmpty()) && (!HTTPConstants.HEADER_CONTENT_LENGTH
+            .equalsIgnoreCase(header.getName())))
+        .map(header -> createJettyHeader(header, url))
+        .collect(Collectors.toList());
+  }
+
+  /*
+   Jetty sends the body only after receiving the 100 (Continue) response, so bodies rejected by
+   the server (authentication, quotas, etc.) are not uploaded. Bodies with unknown length (like
+   the ones compressed while sent) are considered above any threshold.
+   */
+  private void setExpectContinue(HttpRequest request, HTTP2Sampler sampler) {
+    long threshold = sampler.getExpectContinueThreshold();
+    Content body = request.getBody();
+    if (threshold < 0 || body == null) {
+      return;
+    }
+    // compressed bodies are compared by their uncompressed length, which is the one users set up
+    long length = getRawLength(body);
+    if (length < 0 || length > threshold) {
+      addHeaderIfMissing(HttpHeader.EXPECT, HttpHeaderValue.CONTINUE.asString(),
+          (Mutable) request.getHeaders());
+    }
+  }
+
+  private static long getRawLength(Content body) {
+    if (body instanceof CompressedRequestContent) {
+      return ((CompressedRequestContent) body).getRawLength();
+    } else if (body instanceof CompressedBytesRequestContent) {
+      return ((CompressedBytesRequestContent) body).rawLength;
+    }
+    return body.getLength();
+  }
+
+  private static boolean expectsContinue(Request request) {
+    return request.getHeaders().contains(HttpHeader.EXPECT, HttpHeaderValue.CONTINUE.asString());
+  }
+
   private void addHeaderIfMissing(HttpHeader header, String value, Mutable headers) {
     if (!headers.contains(header)) {
       headers.put(header, value);
@@ -377,44 +903,58 @@ public class HTTP2JettyClient {
 
   private void setBody(HttpRequest request, HTTP2Sampler sampler, HTTPSampleResult result)
       throws IOException {
+    RequestPlan plan = sampler.getRequestPlan();
     String contentEncoding = sampler.getContentEncoding();
     String contentTypeHeader =
         request.getHeaders() != null ? request.getHeaders().get(HTTPConstants.HEADER_CONTENT_TYPE)
             : null;
     boolean hasContentTypeHeader = contentTypeHeader != null && contentTypeHeader.isEmpty();
     StringBuilder postBody = new StringBuilder();
-    if (sampler.getUseMultipart()) {
+    String generatedBodyType = sampler.getGeneratedBodyType();
+    if (!generatedBodyType.isEmpty() && isMethodWithBody(sampler.getMethod())) {
+      BodyType bodyType = BodyType.valueOf(generatedBodyType);
+      String contentType = contentTypeHeader != null ? contentTypeHeader
+          : bodyType == BodyType.JSON_ARRAY ? JSON_MIME_TYPE : DEFAULT_FILE_MIME_TYPE;
+      GeneratedRequestContent content = new GeneratedRequestContent(contentType, bodyType,
+          sampler.getGeneratedBodyPattern(), sampler.getGeneratedBodySize(),
+          httpClient.getByteBufferPool());
+      postBody.append("<generated ").append(bodyType).append(" body of ")
+          .append(content.getLength()).append(" bytes, not shown here>");
+      request.body(content);
+    } else if (sampler.getUseMultipart()) {
       MultiPartRequestContent multipartEntityBuilder = new MultiPartRequestContent();
       String boundary = extractMultipartBoundary(multipartEntityBuilder);
       Charset contentCharset =
-          buildCharsetOrDefault(contentEncoding, StandardCharsets.US_ASCII);
+          buildCharsetOrDefault(contentEncoding, StandardCharsets.US_ASCII, plan);
       for (JMeterProperty jMeterProperty : sampler.getArguments()) {
         HTTPArgument arg = (HTTPArgument) jMeterProperty.getObjectValue();
         String parameterName = arg.getName();
         if (!arg.isSkippable(parameterName)) {
-          postBody.append(
-              buildArgumentPartRequestBody(arg, contentCharset, contentEncoding, boundary));
+          if (!leanResults) {
+            postBody.append(
+                buildArgumentPartRequestBody(arg, contentCharset, contentEncoding, boundary));
+          }
           multipartEntityBuilder.addFieldPart(parameterName,
               new StringRequestContent(contentTypeHeader, arg.getValue(), contentCharset), null);
         }
       }
-      Content[] fileBodies = new PathRequestContent[sampler
-          .getHTTPFiles().length];
-      // Cannot retrieve parts once added
-      for (int i = 0; i < sampler.getHTTPFiles().length; i++) {
-        final HTTPFileArg file = sampler.getHTTPFiles()[i];
+      for (HTTPFileArg file : sampler.getHTTPFiles()) {
         if (StringUtils.isBlank(file.getParamName())) {
           throw new IllegalStateException("Param name is blank");
         }
         String mimeTypeFile = extractFileMimeType(hasContentTypeHeader, file);
-        fileBodies[i] = new PathRequestContent(mimeTypeFile, Path.of(file.getPath()));
-        String fileName = Paths.get((file.getPath())).getFileName().toString();
-        postBody.append(buildFilePartRequestBody(file, fileName, boundary));
-        multipartEntityBuilder.addFilePart(file.getParamName(), fileName, fileBodies[i],
-            null);
+        UploadFile uploadFile = UPLOAD_FILE_CACHE.find(file.getPath());
+        String fileName = uploadFile.getFileName();
+        if (!leanResults) {
+          postBody.append(buildFilePartRequestBody(file, fileName, boundary));
+        }
+        multipartEntityBuilder.addFilePart(file.getParamName(), fileName,
+            uploadFile.buildContent(mimeTypeFile), null);
+      }
+      if (!leanResults) {
+        postBody.append(MULTI_PART_SEPARATOR).append(boundary).append(MULTI_PART_SEPARATOR)
+            .append(LINE_SEPARATOR);
       }
-      postBody.append(MULTI_PART_SEPARATOR).append(boundary).append(MULTI_PART_SEPARATOR)
-          .append(LINE_SEPARATOR);
       multipartEntityBuilder.close();
       request.body(multipartEntityBuilder);
     } else {
@@ -430,47 +970,161 @@ public class HTTP2JettyClient {
         if (!DEFAULT_FILE_MIME_TYPE.equals(mimeTypeFile)) {
           request.addHeader(new HttpField(HTTPConstants.HEADER_CONTENT_TYPE, mimeTypeFile));
         }
-        Content requestContent = new PathRequestContent(mimeTypeFile, Path.of(file.getPath()));
-        request.body(requestContent);
+        request.body(UPLOAD_FILE_CACHE.find(file.getPath()).buildContent(mimeTypeFile));
         postBody.append("<actual file content, not shown here>");
       } else {
         if (!hasContentTypeHeader && ADD_CONTENT_TYPE_TO_POST_IF_MISSING) {
           request.addHeader(new HttpField(HTTPConstants.HEADER_CONTENT_TYPE,
               HTTPConstants.APPLICATION_X_WWW_FORM_URLENCODED));
         }
-        Charset contentCharset = buildCharsetOrDefault(contentEncoding, StandardCharsets.UTF_8);
-        if (sampler.getSendParameterValuesAsPostBody()) {
+        Charset contentCharset = buildCharsetOrDefault(contentEncoding, StandardCharsets.UTF_8,
+            plan);
+        String binaryBodyFormat = sampler.getBinaryBodyFormat();
+        if (sampler.getSendParameterValuesAsPostBody() && !binaryBodyFormat.isEmpty()) {
+          byte[] binaryBody = findBinaryBody(binaryBodyFormat, sampler, plan);
+          setBytesBody(request, contentTypeHeader, binaryBody, sampler);
+          postBody.append("<binary body of ").append(binaryBody.length)
+              .append(" bytes, not shown here>");
+        } else if (sampler.getSendParameterValuesAsPostBody()) {
           for (JMeterProperty jMeterProperty : sampler.getArguments()) {
             HTTPArgument arg = (HTTPArgument) jMeterProperty.getObjectValue();
             postBody.append(arg.getEncodedValue(contentCharset.name()));
           }
-          Content requestContent = new StringRequestContent(contentTypeHeader, postBody.toString(),
-              contentCharset);
-          request.body(requestContent);
+          setBytesBody(request, contentTypeHeader, postBody.toString().getBytes(contentCharset),
+              sampler);
         } else if (isMethodWithBody(sampler.getMethod())) {
-          Fields fields = new Fields();
-          for (JMeterProperty p : sampler.getArguments()) {
-            HTTPArgument arg = (HTTPArgument) p.getObjectValue();
-            String parameterName = arg.getName();
-            if (!arg.isSkippable(parameterName)) {
-              String parameterValue = arg.getValue();
-              if (!arg.isAlwaysEncoded()) {
-                // The FormRequestContent always urlencodes both name and value, in this case the
-                // value is already encoded by the user so is needed to decode the value now, so
-                // that when the httpclient encodes it, we end up with the same value as the user
-                // had entered.
-                parameterName = URLDecoder.decode(parameterName, contentCharset.name());
-                parameterValue = URLDecoder.decode(parameterValue, contentCharset.name());
-              }
-              fields.add(parameterName, parameterValue);
-            }
+          byte[] formBody = plan.findFormBody(sampler.getArguments(), contentCharset);
+          if (formBody == null) {
+            formBody = buildFormBody(sampler, contentCharset, plan);
           }
-          postBody.append(FormRequestContent.convert(fields));
-          request.body(new FormRequestContent(fields, contentCharset));
+          if (!leanResults) {
+            postBody.append(plan.getFormQueryString());
+          }
+          setBytesBody(request, HTTPConstants.APPLICATION_X_WWW_FORM_URLENCODED, formBody,
+              sampler);
+        }
+      }
+    }
+    Content body = request.getBody();
+    String compression = findRequestCompression(request, sampler);
+    if (body != null && compression != null) {
+      request.headers(h -> h.put(HttpHeader.CONTENT_ENCODING, compression));
+      request.body(new CompressedRequestContent(body, compression, httpClient.getByteBufferPool()));
+    }
+    if (!leanResults) {
+      result.setQueryString(postBody.toString());
+    }
+  }
+
+  /*
+   Decoded bodies are kept in the plan, so while the body text doesn't change every request sends
+   the same array (which request contents only wrap), and its compressed version is reused.
+   */
+  private byte[] findBinaryBody(String format, HTTP2Sampler sampler, RequestPlan plan) {
+    String text = buildRawBodyText(sampler.getArguments());
+    if (BINARY_BODY_VARIABLE.equals(format)) {
+      JMeterVariables variables = JMeterContextService.getContext().getVariables();
+      Object value = variables != null ? variables.getObject(text) : null;
+      if (!(value instanceof byte[])) {
+        throw new IllegalArgumentException("Variable " + text + " does not contain a byte array");
+      }
+      return (byte[]) value;
+    }
+    byte[] ret = plan.findBinaryBody(format, text);
+    if (ret == null) {
+      ret = decodeBinaryBody(format, text);
+      plan.setBinaryBody(format, text, ret);
+    }
+    return ret;
+  }
+
+  private static String buildRawBodyText(Arguments arguments) {
+    if (arguments.getArgumentCount() == 1) {
+      return arguments.getArgument(0).getValue();
+    }
+    StringBuilder ret = new StringBuilder();
+    for (JMeterProperty prop : arguments) {
+      ret.append(((HTTPArgument) prop.getObjectValue()).getValue());
+    }
+    return ret.toString();
+  }
+
+  private static byte[] decodeBinaryBody(String format, String text) {
+    switch (format) {
+      case BINARY_BODY_BASE64:
+        // MIME decoder ignores line breaks, which are common in pasted base64 content
+        return Base64.getMimeDecoder().decode(text);
+      case BINARY_BODY_HEX:
+        return decodeHex(text);
+      default:
+        throw new IllegalArgumentException("Unsupported binary body format " + format);
+    }
+  }
+
+  private static byte[] decodeHex(String text) {
+    String hex = WHITESPACE_PATTERN.matcher(text).replaceAll("");
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Hex body has an odd number of digits");
+    }
+    byte[] ret = new byte[hex.length() / 2];
+    for (int i = 0; i < ret.length; i++) {
+      int high = Character.digit(hex.charAt(i * 2), 16);
+      int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid hex body digits " + hex.substring(i * 2,
+            i * 2 + 2));
+      }
+      ret[i] = (byte) (high << 4 | low);
+    }
+    return ret;
+  }
+
+  /*
+   Bodies in memory are compressed at once, so the compressed body can be reused while it doesn't
+   change, instead of compressing it again on each request.
+   */
+  private void setBytesBody(HttpRequest request, String contentType, byte[] body,
+      HTTP2Sampler sampler) {
+    String compression = findRequestCompression(request, sampler);
+    if (compression == null) {
+      request.body(new BytesRequestContent(contentType, body));
+      return;
+    }
+    request.headers(h -> h.put(HttpHeader.CONTENT_ENCODING, compression));
+    request.body(new CompressedBytesRequestContent(contentType,
+        sampler.getRequestPlan().getCompressedBody(compression, body), body.length));
+    setVariable(RAW_REQUEST_BODY_SIZE_VARIABLE, String.valueOf(body.length));
+  }
+
+  private String findRequestCompression(HttpRequest request, HTTP2Sampler sampler) {
+    String ret = sampler.getRequestCompression();
+    // an explicit Content-Encoding header means the body is already encoded
+    return ret.isEmpty() || request.getHeaders().contains(HttpHeader.CONTENT_ENCODING) ? null
+        : ret;
+  }
+
+  private byte[] buildFormBody(HTTP2Sampler sampler, Charset contentCharset, RequestPlan plan)
+      throws UnsupportedEncodingException {
+    Fields fields = new Fields();
+    for (JMeterProperty p : sampler.getArguments()) {
+      HTTPArgument arg = (HTTPArgument) p.getObjectValue();
+      String parameterName = arg.getName();
+      if (!arg.isSkippable(parameterName)) {
+        String parameterValue = arg.getValue();
+        if (!arg.isAlwaysEncoded()) {
+          // The FormRequestContent always urlencodes both name and value, in this case the
+          // value is already encoded by the user so is needed to decode the value now, so
+          // that when the httpclient encodes it, we end up with the same value as the user
+          // had entered.
+          parameterName = URLDecoder.decode(parameterName, contentCharset.name());
+          parameterValue = URLDecoder.decode(parameterValue, contentCharset.name());
         }
+        fields.add(parameterName, parameterValue);
       }
     }
-    result.setQueryString(postBody.toString());
+    byte[] ret = FormRequestContent.convert(fields, contentCharset).getBytes(contentCharset);
+    plan.setForm(sampler.getArguments(), contentCharset, ret, FormRequestContent.convert(fields));
+    return ret;
   }
 
   private String extractMultipartBoundary(MultiPartRequestContent multipartEntityBuilder) {
@@ -479,8 +1133,9 @@ public class HTTP2JettyClient {
     return boundaryParam.substring(boundaryParam.indexOf("=") + 1);
   }
 
-  private Charset buildCharsetOrDefault(String contentEncoding, Charset defaultCharset) {
-    return !contentEncoding.isEmpty() ? Charset.forName(contentEncoding) : defaultCharset;
+  private Charset buildCharsetOrDefault(String contentEncoding, Charset defaultCharset,
+      RequestPlan plan) {
+    return !contentEncoding.isEmpty() ? plan.getCharset(contentEncoding) : defaultCharset;
   }
 
   private String buildArgumentPartRequestBody(HTTPArgument arg, Charset contentCharset,
@@ -541,7 +1196,7 @@ public class HTTP2JettyClient {
   }
 
   private void setResultContentResponse(HTTPSampleResult result, ContentResponse contentResponse,
-      HTTP2Sampler sampler) throws IOException {
+      long bodySize, AssertionResult assertionResult, HTTP2Sampler sampler) throws IOException {
     String contentType = contentResponse.getHeaders() != null
         ? contentResponse.getHeaders().get(HTTPConstants.HEADER_CONTENT_TYPE)
         : null;
@@ -550,10 +1205,7 @@ public class HTTP2JettyClient {
       result.setEncodingAndType(contentType);
     }
 
-    // When a resource is cached, the sample result is empty
-    InputStream inputStream = new ByteArrayInputStream(contentResponse.getContent());
-    result.setResponseData(sampler.readResponse(result, inputStream,
-        contentResponse.getContent().length));
+    result.setBodySize(bodySize);
 
     result.sampleEnd();
 
@@ -561,8 +1213,13 @@ public class HTTP2JettyClient {
     String responseMessage = contentResponse.getReason() != null ? contentResponse.getReason()
         : HttpStatus.getMessage(contentResponse.getStatus());
     result.setResponseMessage(responseMessage);
-    result.setSuccessful(contentResponse.getStatus() >= 200 && contentResponse.getStatus() <= 399);
-    result.setResponseHeaders(extractResponseHeaders(contentResponse, responseMessage));
+    result.setSuccessful(ResponseCapturePolicy.isSuccessStatus(contentResponse.getStatus()));
+    if (assertionResult != null) {
+      result.addAssertionResult(assertionResult);
+      if (assertionResult.isFailure()) {
+        result.setSuccessful(false);
+      }
+    }
     if (result.isRedirect()) {
       result.setRedirectLocation(extractRedirectLocation(contentResponse));
     }
@@ -571,20 +1228,65 @@ public class HTTP2JettyClient {
       result.setURL(contentResponse.getRequest().getURI().toURL());
     }
 
-    long headerBytes =
-        (long) result.getResponseHeaders().length()   // condensed length (without \r)
-            + (long) contentResponse.getHeaders().asString().length() // Add \r for each header
-            + 1L // Add \r for initial header
-            + 2L; // final \r\n before data
-    result.setHeadersSize((int) headerBytes);
+    result.setHeadersSize((int) computeHeadersSize(
+        buildStatusLine(contentResponse, responseMessage), contentResponse.getHeaders()));
+  }
+
+  private String buildStatusLine(ContentResponse contentResponse, String message) {
+    return contentResponse.getVersion() + " " + contentResponse.getStatus() + " " + message;
   }
 
-  private String extractResponseHeaders(ContentResponse contentResponse,
-      String message) {
-    return contentResponse.getVersion() + " " + contentResponse.getStatus() + " " + message + "\n"
+  private String buildResponseHeadersString(ContentResponse contentResponse, String message) {
+    return buildStatusLine(contentResponse, message) + "\n"
         + buildHeadersString(contentResponse.getHeaders());
   }
 
+  /*
+   Computes the size of the response headers as it was computed from the headers strings (status
+   line and headers with \n separators plus the raw headers with \r\n separators), but without
+   building them.
+   */
+  private long computeHeadersSize(String statusLine, HttpFields headers) {
+    long ret = statusLine.length() + 1L // status line and its \n
+        + 2L // final \r\n of raw headers
+        + 1L // Add \r for initial header
+        + 2L; // final \r\n before data
+    for (HttpField field : headers) {
+      String value = field.getValue();
+      long fieldLength = field.getName().length() + 2L + (value != null ? value.length() : 0);
+      if (!HTTPConstants.HEADER_COOKIE.equalsIgnoreCase(field.getName())) {
+        ret += fieldLength + 1L; // condensed header line with \n
+      }
+      ret += fieldLength + 2L; // raw header line with \r\n
+    }
+    return ret;
+  }
+
+  private byte[] buildResponseData(ContentResponse contentResponse, DigestContentConsumer digest,
+      FileContentConsumer responseFile, HTTP2Sampler sampler) {
+    if (responseFile != null) {
+      return responseFile.getPath().toString().getBytes(StandardCharsets.UTF_8);
+    } else if (digest != null) {
+      return digest.getHexDigest();
+    } else if (sampler.isDiscardResponseBody()) {
+      return new byte[0];
+    }
+    return buildResponseData(contentResponse.getContent());
+  }
+
+  /*
+   The content aggregated by the response listener is handed to the sample result as is, instead
+   of copying it again through HTTPSamplerBase.readResponse, unless it has to be truncated.
+   */
+  @VisibleForTesting
+  byte[] buildResponseData(byte[] content) {
+    if (maxBytesToStorePerRequest > 0 && content.length > maxBytesToStorePerRequest) {
+      LOG.debug("Big response, truncating it to {} bytes", maxBytesToStorePerRequest);
+      return Arrays.copyOf(content, maxBytesToStorePerRequest);
+    }
+    return content;
+  }
+
   private String extractRedirectLocation(ContentResponse contentResponse) {
     String redirectLocation = contentResponse.getHeaders() != null
         ? contentResponse.getHeaders().get(HTTPConstants.HEADER_LOCATION)
@@ -609,10 +1311,220 @@ public class HTTP2JettyClient {
 
   public void clearAuthenticationResults() {
     httpClient.getAuthenticationStore().clearAuthenticationResults();
+    // so preemptive results are added again on next sample
+    authEntries = null;
+  }
+
+  /**
+   * Closes all the connections opened by the client, so next requests have to establish new ones.
+   *
+   * @param resumeTlsSessions when false, cached TLS sessions are discarded so new connections go
+   * through a full TLS handshake instead of resuming a previous session.
+   * @throws Exception when the TLS sessions can't be discarded.
+   */
+  public void closeConnections(boolean resumeTlsSessions) throws Exception {
+    if (!resumeTlsSessions) {
+      discardTlsSessions();
+    }
+    for (Connection connection : openConnections) {
+      connection.close();
+    }
+  }
+
+  /*
+   Invalidating the cached sessions is not enough, since servers may send session tickets to the
+   connections being closed after that. A new SSL context starts with an empty session cache
+   instead, while the previous one keeps the tickets of the closed connections.
+   */
+  private void discardTlsSessions() throws Exception {
+    if (sslContextFactory.isStarted()) {
+      sslContextFactory.reload(f -> {
+      });
+    }
+  }
+
+  /*
+   TLS 1.3 sessions are only cached once the server sends a session ticket, which may arrive after
+   the response.
+   */
+  @VisibleForTesting
+  boolean hasTlsSessions() {
+    SSLContext sslContext = sslContextFactory.getSslContext();
+    return sslContext != null && sslContext.getClientSessionContext().getIds().hasMoreElements();
+  }
+
+  /**
+   * @return the number of requests whose headers were sent over a connection, which allows
+   * knowing if a sample reached the destination even when it failed.
+   */
+  public long getCommittedRequests() {
+    return committedRequests.get();
   }
 
   public String dump() {
     return httpClient.dump();
   }
 
+  /*
+   Single listener for the request events updating the sample result timings, instead of one
+   lambda (and the Jetty adapter wrapping it) for each event.
+   */
+  private class SampleTimingListener implements Request.Listener,
+      Response.BeginListener {
+
+    private final HTTPSampleResult result;
+    private volatile long commitTime;
+    private volatile long responseBeginTime;
+
+    private SampleTimingListener(HTTPSampleResult result) {
+      this.result = result;
+    }
+
+    @Override
+    public void onBegin(Request request) {
+      result.connectEnd();
+    }
+
+    @Override
+    public void onBegin(Response response) {
+      // with Expect: 100-continue, this is first invoked for the interim response
+      if (responseBeginTime == 0) {
+        responseBeginTime = System.currentTimeMillis();
+      }
+      result.latencyEnd();
+    }
+
+    @Override
+    public void onCommit(Request request) {
+      commitTime = System.currentTimeMillis();
+      committedRequests.incrementAndGet();
+    }
+
+    @Override
+    public void onContent(Request request, ByteBuffer content) {
+      result.setSentBytes(result.getSentBytes() + content.limit());
+    }
+
+    /**
+     * @return the time between sending the request headers and receiving the first response
+     * (the interim one, or the final one when the server rejected the body), which is the time
+     * spent waiting for the server to accept the body when the request expects 100-continue.
+     */
+    private long getContinueWaitTime() {
+      return commitTime > 0 && responseBeginTime > 0 ? responseBeginTime - commitTime : 0;
+    }
+
+  }
+
+  /*
+   Values of an auth manager entry used by the client, to only update the authentication store
+   when they change.
+   */
+  private static final class AuthEntry {
+
+    private final AuthManager.Mechanism mechanism;
+    private final String url;
+    private final String user;
+    private final String pass;
+    private final String realm;
+
+    private AuthEntry(Authorization auth) {
+      this.mechanism = auth.getMechanism();
+      this.url = auth.getURL();
+      this.user = auth.getUser();
+      this.pass = auth.getPass();
+      this.realm = auth.getRealm();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      AuthEntry that = (AuthEntry) o;
+      return mechanism == that.mechanism
+          && Objects.equals(url, that.url)
+          && Objects.equals(user, that.user)
+          && Objects.equals(pass, that.pass)
+          && Objects.equals(realm, that.realm);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(mechanism, url, user, pass, realm);
+    }
+
+  }
+
+  private static class CompressedBytesRequestContent extends BytesRequestContent {
+
+    private final long rawLength;
+
+    private CompressedBytesRequestContent(String contentType, byte[] body, long rawLength) {
+      super(contentType, body);
+      this.rawLength = rawLength;
+    }
+
+  }
+
+  private static class RangeSegment {
+
+    private final long start;
+    private final long end;
+    private final HTTPSampleResult result = new HTTPSampleResult();
+    private HttpRequest request;
+    private StreamingResponseListener listener;
+    private ContentResponse response;
+
+    private RangeSegment(long start, long end, String label, URL url) {
+      this.start = start;
+      this.end = end;
+      result.setSampleLabel(label);
+      result.setURL(url);
+      result.setHTTPMethod(HTTPConstants.GET);
+    }
+
+  }
+
+  private class TrackedConnectionPool extends MultiplexConnectionPool {
+
+    private final boolean unknownProtocol;
+    private volatile int maxConnections;
+
+    private TrackedConnectionPool(HttpDestination destination, int maxConnections,
+        boolean unknownProtocol) {
+      super(destination, Math.max(maxConnectionsPerDestination, maxConnectionsPerHttp1Destination),
+          destination, 1);
+      this.maxConnections = maxConnections;
+      this.unknownProtocol = unknownProtocol;
+    }
+
+    @Override
+    protected void tryCreate(boolean create) {
+      if (getConnectionCount() < maxConnections) {
+        super.tryCreate(create);
+      }
+    }
+
+    @Override
+    protected void onCreated(Connection connection) {
+      // upgraded HTTP/2 connections are also added with onCreated, after their HTTP/1.1 one
+      if (unknownProtocol) {
+        maxConnections = getMaxConnections(!(connection instanceof Multiplexable));
+      }
+      super.onCreated(connection);
+      openConnections.add(connection);
+    }
+
+    @Override
+    protected void removed(Connection connection) {
+      super.removed(connection);
+      openConnections.remove(connection);
+    }
+
+  }
+
 }
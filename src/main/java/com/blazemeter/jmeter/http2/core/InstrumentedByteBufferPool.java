@@ -0,0 +1,75 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.jetty.io.MappedByteBufferPool;
+
+/**
+ * Buffer pool shared by all the clients, which keeps statistics of its usage and can be bounded
+ * by size class (number of buffers kept for each capacity) and by total heap and direct memory.
+ *
+ * <p>With no bucket size limit and the default memory limits (a quarter of the max heap) it
+ * behaves as a plain {@link MappedByteBufferPool}. When releasing a buffer exceeds the memory
+ * limits, the least recently used buffers are dropped.
+ */
+public class InstrumentedByteBufferPool extends MappedByteBufferPool {
+
+  private final LongAdder acquires = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param maxBucketSize max number of buffers kept for each capacity, or -1 for no limit.
+   * @param maxHeapMemory max bytes kept in heap buffers, 0 for a quarter of the max heap or -1 for
+   * no limit.
+   * @param maxDirectMemory max bytes kept in direct buffers, 0 for a quarter of the max heap or -1
+   * for no limit.
+   */
+  public InstrumentedByteBufferPool(int factor, int maxBucketSize, long maxHeapMemory,
+      long maxDirectMemory) {
+    super(factor, maxBucketSize, null, maxHeapMemory, maxDirectMemory);
+  }
+
+  @Override
+  public ByteBuffer acquire(int size, boolean direct) {
+    acquires.increment();
+    return super.acquire(size, direct);
+  }
+
+  @Override
+  public ByteBuffer newByteBuffer(int capacity, boolean direct) {
+    misses.increment();
+    return super.newByteBuffer(capacity, direct);
+  }
+
+  public long getAcquires() {
+    return acquires.sum();
+  }
+
+  /**
+   * @return the number of acquired buffers which were taken from the pool.
+   */
+  public long getHits() {
+    return getAcquires() - getMisses();
+  }
+
+  /**
+   * @return the number of acquired buffers which had to be allocated.
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the bytes of the buffers currently kept in the pool.
+   */
+  public long getRetainedBytes() {
+    return getHeapMemory() + getDirectMemory();
+  }
+
+  public String getStats() {
+    return String.format("acquires=%d, hits=%d, misses=%d, retainedHeapBytes=%d, "
+            + "retainedDirectBytes=%d", getAcquires(), getHits(), getMisses(), getHeapMemory(),
+        getDirectMemory());
+  }
+
+}
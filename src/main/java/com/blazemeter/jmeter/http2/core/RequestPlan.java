@@ -0,0 +1,198 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.http.control.CacheManager;
+import org.apache.jmeter.protocol.http.control.Header;
+import org.apache.jmeter.protocol.http.control.HeaderManager;
+import org.apache.jmeter.protocol.http.util.HTTPArgument;
+import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.eclipse.jetty.http.HttpField;
+
+/**
+ * Keeps the parts of a request built from the sampler configuration (URI, header fields, charset,
+ * encoded form body, binary and compressed bodies and cache manager wrapper), so they are only
+ * built again when the configuration values change.
+ *
+ * <p>Each sampler clone (and so each thread) has its own plan. Instead of trusting that
+ * properties without variables or functions don't change (scripts may modify them), the cached
+ * parts are validated comparing the current values with the ones used to build them, which is
+ * cheaper than building them again.
+ */
+public class RequestPlan {
+
+  private URL url;
+  private URI uri;
+  private CacheManager cacheManager;
+  private JettyCacheManager jettyCacheManager;
+  private final List<String> headerValues = new ArrayList<>();
+  private int port;
+  private int defaultPort;
+  private List<HttpField> headerFields;
+  private String charsetName;
+  private Charset charset;
+  private final List<FormArgument> formArguments = new ArrayList<>();
+  private Charset formCharset;
+  private byte[] formBody;
+  private String formQueryString;
+  private String binaryFormat;
+  private String binaryText;
+  private byte[] binaryBody;
+  private String compression;
+  private byte[] rawBody;
+  private byte[] compressedBody;
+
+  public URI getUri(URL url) throws URISyntaxException {
+    // URL.equals is not used since it may resolve the host names
+    if (this.url == null || !url.getProtocol().equals(this.url.getProtocol())
+        || !Objects.equals(url.getAuthority(), this.url.getAuthority())
+        || !url.getFile().equals(this.url.getFile())
+        || !Objects.equals(url.getRef(), this.url.getRef())) {
+      uri = url.toURI();
+      this.url = url;
+    }
+    return uri;
+  }
+
+  public JettyCacheManager getCacheManager(CacheManager cacheManager) {
+    if (cacheManager != this.cacheManager) {
+      jettyCacheManager = JettyCacheManager.fromCacheManager(cacheManager);
+      this.cacheManager = cacheManager;
+    }
+    return jettyCacheManager;
+  }
+
+  /**
+   * @param builder builds the header fields when the headers changed since the last invocation.
+   */
+  public List<HttpField> getHeaderFields(HeaderManager headerManager, int port, int defaultPort,
+      Function<HeaderManager, List<HttpField>> builder) {
+    if (headerFields == null || port != this.port || defaultPort != this.defaultPort
+        || !matchesHeaders(headerManager)) {
+      headerValues.clear();
+      for (JMeterProperty prop : headerManager.getHeaders()) {
+        Header header = (Header) prop.getObjectValue();
+        headerValues.add(header.getName());
+        headerValues.add(header.getValue());
+      }
+      this.port = port;
+      this.defaultPort = defaultPort;
+      headerFields = builder.apply(headerManager);
+    }
+    return headerFields;
+  }
+
+  private boolean matchesHeaders(HeaderManager headerManager) {
+    int i = 0;
+    for (JMeterProperty prop : headerManager.getHeaders()) {
+      Header header = (Header) prop.getObjectValue();
+      if (i + 1 >= headerValues.size() || !header.getName().equals(headerValues.get(i))
+          || !header.getValue().equals(headerValues.get(i + 1))) {
+        return false;
+      }
+      i += 2;
+    }
+    return i == headerValues.size();
+  }
+
+  public Charset getCharset(String name) {
+    if (!name.equals(charsetName)) {
+      charset = Charset.forName(name);
+      charsetName = name;
+    }
+    return charset;
+  }
+
+  /**
+   * @return the encoded form body built by {@link #setForm}, or null when the arguments or
+   * charset changed since then.
+   */
+  public byte[] findFormBody(Arguments arguments, Charset charset) {
+    if (formBody == null || !charset.equals(formCharset)) {
+      return null;
+    }
+    int i = 0;
+    for (JMeterProperty prop : arguments) {
+      if (i >= formArguments.size()
+          || !formArguments.get(i).matches((HTTPArgument) prop.getObjectValue())) {
+        return null;
+      }
+      i++;
+    }
+    return i == formArguments.size() ? formBody : null;
+  }
+
+  public String getFormQueryString() {
+    return formQueryString;
+  }
+
+  public void setForm(Arguments arguments, Charset charset, byte[] body, String queryString) {
+    formArguments.clear();
+    formCharset = charset;
+    for (JMeterProperty prop : arguments) {
+      formArguments.add(new FormArgument((HTTPArgument) prop.getObjectValue()));
+    }
+    formBody = body;
+    formQueryString = queryString;
+  }
+
+  /**
+   * @return the binary body decoded by {@link #setBinaryBody}, or null when the format or body
+   * text changed since then.
+   */
+  public byte[] findBinaryBody(String format, String text) {
+    return format.equals(binaryFormat) && text.equals(binaryText) ? binaryBody : null;
+  }
+
+  public void setBinaryBody(String format, String text, byte[] body) {
+    binaryFormat = format;
+    binaryText = text;
+    binaryBody = body;
+  }
+
+  /**
+   * @return the body compressed with the given encoding, compressing it only when the body or
+   * encoding changed since the last invocation.
+   */
+  public byte[] getCompressedBody(String compression, byte[] body) {
+    if (!compression.equals(this.compression) || (body != rawBody
+        && !Arrays.equals(body, rawBody))) {
+      compressedBody = CompressedRequestContent.compress(compression, body);
+      this.compression = compression;
+      rawBody = body;
+    }
+    return compressedBody;
+  }
+
+  /*
+   Values of a form argument used to encode the form body.
+   */
+  private static final class FormArgument {
+
+    private final String name;
+    private final String value;
+    private final boolean alwaysEncoded;
+
+    private FormArgument(HTTPArgument arg) {
+      this.name = arg.getName();
+      this.value = arg.getValue();
+      this.alwaysEncoded = arg.isAlwaysEncoded();
+    }
+
+    private boolean matches(HTTPArgument arg) {
+      return alwaysEncoded == arg.isAlwaysEncoded()
+          && Objects.equals(name, arg.getName())
+          && Objects.equals(value, arg.getValue());
+    }
+
+  }
+
+}
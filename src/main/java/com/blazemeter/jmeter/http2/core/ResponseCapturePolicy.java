@@ -0,0 +1,55 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether the response body and headers of a sample are kept in the sample result, so
+ * long runs only keep them for failed samples or samples matching a status or time condition.
+ *
+ * <p>When the decision only depends on the response status, the body is not buffered at all.
+ * Bodies with text content types are always kept when embedded resources are retrieved, since
+ * they need to be parsed.
+ */
+public class ResponseCapturePolicy {
+
+  private final Pattern statusPattern;
+  private final long minTime;
+  private final boolean keepTextBodies;
+  private final boolean deferred;
+
+  /**
+   * @param statusPattern regular expression of the response codes to keep, or empty to only keep
+   * failed samples.
+   * @param minTime samples taking at least the given milliseconds are kept, a negative value
+   * disables it.
+   * @param deferred true when the sample success is only known after receiving the whole body
+   * (like with streaming assertions), so the body is always buffered.
+   */
+  public ResponseCapturePolicy(String statusPattern, long minTime, boolean keepTextBodies,
+      boolean deferred) {
+    this.statusPattern = statusPattern.isEmpty() ? null : Pattern.compile(statusPattern);
+    this.minTime = minTime;
+    this.keepTextBodies = keepTextBodies;
+    this.deferred = deferred;
+  }
+
+  /**
+   * @return true when the body can be discarded as soon as the response headers are received.
+   */
+  public boolean isDiscardedOnHeaders(int status, String contentType) {
+    return !deferred && minTime < 0 && !isRetained(status, contentType, isSuccessStatus(status),
+        0);
+  }
+
+  public static boolean isSuccessStatus(int status) {
+    return status >= 200 && status <= 399;
+  }
+
+  public boolean isRetained(int status, String contentType, boolean successful, long time) {
+    return !successful
+        || statusPattern != null && statusPattern.matcher(String.valueOf(status)).matches()
+        || minTime >= 0 && time >= minTime
+        || keepTextBodies && contentType != null && contentType.startsWith("text/");
+  }
+
+}
@@ -0,0 +1,17 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Processes the chunks of a response body while they are received by a
+ * {@link StreamingResponseListener}.
+ *
+ * <p>The buffers are only valid during the call, since they are returned to the pool right
+ * after, so implementations must not keep references to them.
+ */
+public interface ResponseContentConsumer {
+
+  void onContent(ByteBuffer content) throws IOException;
+
+}
@@ -0,0 +1,170 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import org.eclipse.jetty.http.GZIPContentDecoder;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.compression.CompressionPool;
+import org.eclipse.jetty.util.compression.InflaterPool;
+
+/**
+ * Decodes a compressed response body chunk by chunk, so it can be processed without keeping
+ * either the compressed or the decoded body in memory.
+ *
+ * <p>Inflaters are taken from shared pools and decoded chunks from the client buffer pool, so
+ * decoding a response doesn't allocate them on each request.
+ */
+public abstract class ResponseContentDecoder implements Closeable {
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final InflaterPool GZIP_INFLATER_POOL = buildInflaterPool(true);
+  private static final InflaterPool DEFLATE_INFLATER_POOL = buildInflaterPool(false);
+  private long decodedSize;
+
+  private static InflaterPool buildInflaterPool(boolean nowrap) {
+    InflaterPool ret = new InflaterPool(CompressionPool.DEFAULT_CAPACITY, nowrap);
+    try {
+      ret.start();
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not start inflater pool", e);
+    }
+    return ret;
+  }
+
+  /**
+   * @return the decoder for the given Content-Encoding, or null when the encoding is not
+   * supported (in which case the body is kept as received).
+   */
+  public static ResponseContentDecoder forEncoding(String contentEncoding,
+      ByteBufferPool bufferPool) {
+    if (contentEncoding == null) {
+      return null;
+    }
+    switch (contentEncoding.trim().toLowerCase()) {
+      case "gzip":
+      case "x-gzip":
+        return new GzipDecoder(bufferPool);
+      case "deflate":
+        return new DeflateDecoder(bufferPool);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Decodes the given chunk, passing the decoded content to the output as it is available.
+   */
+  public abstract void decode(ByteBuffer content, ResponseContentConsumer output)
+      throws IOException;
+
+  protected void onDecoded(ByteBuffer decoded, ResponseContentConsumer output)
+      throws IOException {
+    decodedSize += decoded.remaining();
+    output.onContent(decoded);
+  }
+
+  public long getDecodedSize() {
+    return decodedSize;
+  }
+
+  private static class GzipDecoder extends ResponseContentDecoder {
+
+    private final Inflating decoder;
+
+    private GzipDecoder(ByteBufferPool bufferPool) {
+      decoder = new Inflating(bufferPool);
+    }
+
+    @Override
+    public void decode(ByteBuffer content, ResponseContentConsumer output) throws IOException {
+      decoder.decode(content, output);
+    }
+
+    @Override
+    public void close() {
+      decoder.destroy();
+    }
+
+    private final class Inflating extends GZIPContentDecoder {
+
+      private ResponseContentConsumer output;
+      private IOException failure;
+
+      private Inflating(ByteBufferPool bufferPool) {
+        super(GZIP_INFLATER_POOL, bufferPool, BUFFER_SIZE);
+      }
+
+      private void decode(ByteBuffer content, ResponseContentConsumer output) throws IOException {
+        this.output = output;
+        try {
+          decodeChunks(content);
+        } catch (RuntimeException e) {
+          throw (IOException) new ZipException(e.getMessage()).initCause(e);
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      }
+
+      @Override
+      protected boolean decodedChunk(ByteBuffer chunk) {
+        try {
+          onDecoded(chunk, output);
+          return false;
+        } catch (IOException e) {
+          failure = e;
+          return true;
+        } finally {
+          release(chunk);
+        }
+      }
+
+    }
+
+  }
+
+  private static class DeflateDecoder extends ResponseContentDecoder {
+
+    private final ByteBufferPool bufferPool;
+    private final CompressionPool<Inflater>.Entry inflater;
+    private final ByteBuffer buffer;
+
+    private DeflateDecoder(ByteBufferPool bufferPool) {
+      this.bufferPool = bufferPool;
+      inflater = DEFLATE_INFLATER_POOL.acquire();
+      buffer = bufferPool.acquire(BUFFER_SIZE, false);
+    }
+
+    @Override
+    public void decode(ByteBuffer content, ResponseContentConsumer output) throws IOException {
+      Inflater decoder = inflater.get();
+      decoder.setInput(content);
+      try {
+        while (!decoder.finished()) {
+          BufferUtil.clearToFill(buffer);
+          int decoded = decoder.inflate(buffer);
+          BufferUtil.flipToFlush(buffer, 0);
+          if (decoded == 0) {
+            break;
+          }
+          onDecoded(buffer, output);
+        }
+      } catch (DataFormatException e) {
+        throw (IOException) new ZipException(e.getMessage()).initCause(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      inflater.release();
+      bufferPool.release(buffer);
+    }
+
+  }
+
+}
@@ -0,0 +1,150 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.jmeter.assertions.AssertionResult;
+
+/**
+ * Assertion evaluated on the chunks of a response body while they are received, so the body
+ * doesn't need to be kept in memory to check it.
+ *
+ * <p>Patterns are matched against the bytes of the body: substrings are encoded in UTF-8, byte
+ * patterns are given in hexadecimal and regular expressions are matched on a window of the last
+ * received bytes (so matches can't be longer than the window).
+ */
+public class StreamingAssertion implements ResponseContentConsumer {
+
+  public static final String NAME = "Streaming assertion";
+  private final String pattern;
+  private final ContentMatcher matcher;
+  private final long minSize;
+  private final long maxSize;
+  private long size;
+
+  /**
+   * @param minSize minimum size of the body, or a negative value to not check it.
+   * @param maxSize maximum size of the body, or a negative value to not check it.
+   */
+  public StreamingAssertion(PatternType patternType, String pattern, int regexWindow,
+      long minSize, long maxSize) {
+    this.pattern = pattern;
+    this.matcher = buildMatcher(patternType, pattern, regexWindow);
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+  }
+
+  private static ContentMatcher buildMatcher(PatternType patternType, String pattern,
+      int regexWindow) {
+    if (patternType == null || pattern.isEmpty()) {
+      return null;
+    }
+    switch (patternType) {
+      case SUBSTRING:
+        return new BytesMatcher(pattern.getBytes(StandardCharsets.UTF_8));
+      case BYTES:
+        return new BytesMatcher(parseHex(pattern));
+      case REGEX:
+        return new RegexMatcher(pattern, regexWindow);
+      default:
+        throw new IllegalArgumentException("Unsupported pattern type " + patternType);
+    }
+  }
+
+  private static byte[] parseHex(String hex) {
+    String digits = hex.replaceAll("\\s", "");
+    if (digits.length() % 2 != 0) {
+      throw new IllegalArgumentException("Invalid hexadecimal byte pattern " + hex);
+    }
+    byte[] ret = new byte[digits.length() / 2];
+    for (int i = 0; i < ret.length; i++) {
+      int high = Character.digit(digits.charAt(i * 2), 16);
+      int low = Character.digit(digits.charAt(i * 2 + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid hexadecimal byte pattern " + hex);
+      }
+      ret[i] = (byte) ((high << 4) + low);
+    }
+    return ret;
+  }
+
+  @Override
+  public void onContent(ByteBuffer content) {
+    size += content.remaining();
+    if (matcher != null && !matcher.isMatched()) {
+      matcher.onContent(content);
+    }
+  }
+
+  public AssertionResult getResult() {
+    AssertionResult ret = new AssertionResult(NAME);
+    if (matcher != null && !matcher.isMatched()) {
+      ret.setFailure(true);
+      ret.setFailureMessage("Response body does not contain " + pattern);
+    } else if (minSize >= 0 && size < minSize) {
+      ret.setFailure(true);
+      ret.setFailureMessage("Response body size " + size + " is smaller than " + minSize);
+    } else if (maxSize >= 0 && size > maxSize) {
+      ret.setFailure(true);
+      ret.setFailureMessage("Response body size " + size + " is bigger than " + maxSize);
+    }
+    return ret;
+  }
+
+  public enum PatternType {
+    SUBSTRING,
+    REGEX,
+    BYTES
+  }
+
+  private interface ContentMatcher {
+
+    void onContent(ByteBuffer content);
+
+    boolean isMatched();
+
+  }
+
+  private static class BytesMatcher implements ContentMatcher {
+
+    private final BytePatternSearch search;
+    private boolean matched;
+
+    private BytesMatcher(byte[] pattern) {
+      this.search = new BytePatternSearch(pattern);
+    }
+
+    @Override
+    public void onContent(ByteBuffer content) {
+      for (int i = content.position(); i < content.limit() && !matched; i++) {
+        matched = search.feed(content.get(i));
+      }
+    }
+
+    @Override
+    public boolean isMatched() {
+      return matched;
+    }
+
+  }
+
+  private static class RegexMatcher implements ContentMatcher {
+
+    private final ByteRegexWindow window;
+
+    private RegexMatcher(String regex, int window) {
+      this.window = new ByteRegexWindow(regex, window);
+    }
+
+    @Override
+    public void onContent(ByteBuffer content) {
+      window.onContent(content, false);
+    }
+
+    @Override
+    public boolean isMatched() {
+      return window.isMatched();
+    }
+
+  }
+
+}
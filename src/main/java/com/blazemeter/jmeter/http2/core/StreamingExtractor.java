@@ -0,0 +1,527 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts a value from a response body while it is received, so correlation doesn't require
+ * keeping and decoding the whole body.
+ *
+ * <p>Once the value is found the rest of the body is ignored. Values are limited to
+ * {@link #MAX_VALUE_LENGTH} bytes, and bigger values are considered not found.
+ */
+public class StreamingExtractor implements ResponseContentConsumer {
+
+  public static final int MAX_VALUE_LENGTH = 64 * 1024;
+  private static final int REGEX_WINDOW = 8192;
+  private final String variableName;
+  private final ValueExtractor extractor;
+
+  /**
+   * @param expression a JSON path, regular expression or left boundary depending on the
+   * extractor type.
+   * @param rightBoundary only used by {@link ExtractorType#BOUNDARY} extractors.
+   */
+  public StreamingExtractor(ExtractorType type, String variableName, String expression,
+      String rightBoundary) {
+    this.variableName = variableName;
+    switch (type) {
+      case JSON:
+        extractor = new JsonExtractor(JsonPath.parse(expression));
+        break;
+      case BOUNDARY:
+        extractor = new BoundaryExtractor(expression, rightBoundary);
+        break;
+      case REGEX:
+        extractor = new RegexExtractor(expression);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported extractor type " + type);
+    }
+  }
+
+  public String getVariableName() {
+    return variableName;
+  }
+
+  @Override
+  public void onContent(ByteBuffer content) {
+    if (!extractor.isDone()) {
+      extractor.onContent(content);
+    }
+  }
+
+  /**
+   * @return the extracted value, or null if it was not found in the body received so far.
+   */
+  public String getValue() {
+    return extractor.getValue();
+  }
+
+  public enum ExtractorType {
+    JSON,
+    BOUNDARY,
+    REGEX
+  }
+
+  private interface ValueExtractor {
+
+    void onContent(ByteBuffer content);
+
+    boolean isDone();
+
+    String getValue();
+
+  }
+
+  private static class ValueBuffer extends ByteArrayOutputStream {
+
+    private boolean exceeded;
+
+    @Override
+    public void write(int b) {
+      if (count < MAX_VALUE_LENGTH) {
+        super.write(b);
+      } else {
+        exceeded = true;
+      }
+    }
+
+    private boolean isExceeded() {
+      return exceeded;
+    }
+
+    private String toValue(int length) {
+      return new String(buf, 0, length, StandardCharsets.UTF_8);
+    }
+
+  }
+
+  private static class BoundaryExtractor implements ValueExtractor {
+
+    private final BytePatternSearch leftSearch;
+    private final BytePatternSearch rightSearch;
+    private final ValueBuffer value = new ValueBuffer();
+    private boolean leftFound;
+    private boolean done;
+    private String result;
+
+    private BoundaryExtractor(String leftBoundary, String rightBoundary) {
+      leftSearch = new BytePatternSearch(leftBoundary.getBytes(StandardCharsets.UTF_8));
+      rightSearch = new BytePatternSearch(rightBoundary.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void onContent(ByteBuffer content) {
+      for (int i = content.position(); i < content.limit() && !done; i++) {
+        byte b = content.get(i);
+        if (!leftFound) {
+          leftFound = leftSearch.feed(b);
+        } else {
+          value.write(b);
+          if (rightSearch.feed(b)) {
+            result = value.toValue(value.size() - rightSearch.getPatternLength());
+            done = true;
+          } else if (value.isExceeded()) {
+            done = true;
+          }
+        }
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public String getValue() {
+      return result;
+    }
+
+  }
+
+  private static class RegexExtractor implements ValueExtractor {
+
+    private final ByteRegexWindow window;
+
+    private RegexExtractor(String regex) {
+      window = new ByteRegexWindow(regex, REGEX_WINDOW);
+    }
+
+    @Override
+    public void onContent(ByteBuffer content) {
+      window.onContent(content, true);
+    }
+
+    @Override
+    public boolean isDone() {
+      return window.isMatched();
+    }
+
+    @Override
+    public String getValue() {
+      window.end();
+      return window.isMatched() ? window.group(window.groupCount() > 0 ? 1 : 0) : null;
+    }
+
+  }
+
+  /*
+   Subset of JSON path which identifies a single value through object member names and array
+   indexes, like $.items[0].id or $['items'][0]['id'].
+   */
+  private static class JsonPath {
+
+    private final List<Object> segments;
+
+    private JsonPath(List<Object> segments) {
+      this.segments = segments;
+    }
+
+    private static JsonPath parse(String path) {
+      if (!path.startsWith("$")) {
+        throw buildInvalidPathException(path);
+      }
+      List<Object> segments = new ArrayList<>();
+      int i = 1;
+      while (i < path.length()) {
+        char c = path.charAt(i);
+        if (c == '.') {
+          int end = i + 1;
+          while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+            end++;
+          }
+          if (end == i + 1) {
+            throw buildInvalidPathException(path);
+          }
+          segments.add(path.substring(i + 1, end));
+          i = end;
+        } else if (c == '[') {
+          int end = path.indexOf(']', i);
+          if (end < 0) {
+            throw buildInvalidPathException(path);
+          }
+          segments.add(parseBracketSegment(path.substring(i + 1, end).trim(), path));
+          i = end + 1;
+        } else {
+          throw buildInvalidPathException(path);
+        }
+      }
+      return new JsonPath(segments);
+    }
+
+    private static Object parseBracketSegment(String segment, String path) {
+      if (segment.length() >= 2 && (segment.charAt(0) == '\'' || segment.charAt(0) == '"')
+          && segment.charAt(segment.length() - 1) == segment.charAt(0)) {
+        return segment.substring(1, segment.length() - 1);
+      }
+      try {
+        return Integer.parseInt(segment);
+      } catch (NumberFormatException e) {
+        throw buildInvalidPathException(path);
+      }
+    }
+
+    private static IllegalArgumentException buildInvalidPathException(String path) {
+      return new IllegalArgumentException("Unsupported JSON path " + path
+          + ". Only member names and array indexes are supported.");
+    }
+
+    private int length() {
+      return segments.size();
+    }
+
+    private Object get(int index) {
+      return segments.get(index);
+    }
+
+  }
+
+  /*
+   Forward only JSON tokenizer, which tracks the path of the current value and only keeps the
+   member names needed to compare it with the searched path.
+   */
+  private static class JsonExtractor implements ValueExtractor {
+
+    private final JsonPath path;
+    private final List<Container> containers = new ArrayList<>();
+    private final ValueBuffer value = new ValueBuffer();
+    private final ValueBuffer name = new ValueBuffer();
+    // number of containers which match the beginning of the searched path
+    private int matchedDepth;
+    private State state = State.VALUE;
+    private boolean inString;
+    private boolean inName;
+    private int escapeLength;
+    private int unicodeEscape;
+    private char highSurrogate;
+    private boolean capturing;
+    private boolean rawCapture;
+    private int captureDepth;
+    private boolean done;
+    private String result;
+
+    private JsonExtractor(JsonPath path) {
+      this.path = path;
+    }
+
+    private enum State {
+      VALUE,
+      LITERAL,
+      MEMBER_NAME,
+      MEMBER_VALUE,
+      AFTER_VALUE
+    }
+
+    private static class Container {
+
+      private final boolean array;
+      private int index;
+      private String memberName;
+
+      private Container(boolean array) {
+        this.array = array;
+      }
+
+    }
+
+    @Override
+    public void onContent(ByteBuffer content) {
+      for (int i = content.position(); i < content.limit() && !done; i++) {
+        process(content.get(i));
+      }
+    }
+
+    private void process(byte b) {
+      if (inString) {
+        processStringByte(b);
+        return;
+      }
+      if (state == State.LITERAL) {
+        if (!isLiteralEnd(b)) {
+          capture(b);
+          return;
+        }
+        endValue();
+      }
+      switch (b) {
+        case ' ':
+        case '\t':
+        case '\r':
+        case '\n':
+          break;
+        case '{':
+        case '[':
+          startValue(true);
+          capture(b);
+          containers.add(new Container(b == '['));
+          if (b == '[') {
+            updateMatchedDepth();
+            state = State.VALUE;
+          } else {
+            state = State.MEMBER_NAME;
+          }
+          break;
+        case '}':
+        case ']':
+          if (containers.isEmpty()) {
+            done = true;
+            return;
+          }
+          capture(b);
+          containers.remove(containers.size() - 1);
+          matchedDepth = Math.min(matchedDepth, containers.size());
+          endValue();
+          break;
+        case ',':
+          if (containers.isEmpty()) {
+            done = true;
+            return;
+          }
+          capture(b);
+          Container container = containers.get(containers.size() - 1);
+          if (container.array) {
+            container.index++;
+            updateMatchedDepth();
+            state = State.VALUE;
+          } else {
+            state = State.MEMBER_NAME;
+          }
+          break;
+        case ':':
+          capture(b);
+          state = State.VALUE;
+          break;
+        case '"':
+          inString = true;
+          inName = state == State.MEMBER_NAME;
+          if (inName) {
+            name.reset();
+          } else {
+            startValue(false);
+          }
+          if (rawCapture) {
+            capture(b);
+          }
+          break;
+        default:
+          startValue(false);
+          capture(b);
+          state = State.LITERAL;
+      }
+    }
+
+    private static boolean isLiteralEnd(byte b) {
+      return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private void processStringByte(byte b) {
+      if (rawCapture) {
+        capture(b);
+      }
+      if (escapeLength > 0) {
+        processEscapedByte(b);
+      } else if (b == '\\') {
+        escapeLength = 1;
+      } else if (b == '"') {
+        inString = false;
+        if (inName) {
+          endName();
+        } else {
+          endValue();
+        }
+      } else {
+        writeStringByte(b);
+      }
+    }
+
+    private void processEscapedByte(byte b) {
+      if (escapeLength == 1) {
+        escapeLength = 0;
+        switch (b) {
+          case 'b':
+            writeStringByte((byte) '\b');
+            break;
+          case 'f':
+            writeStringByte((byte) '\f');
+            break;
+          case 'n':
+            writeStringByte((byte) '\n');
+            break;
+          case 'r':
+            writeStringByte((byte) '\r');
+            break;
+          case 't':
+            writeStringByte((byte) '\t');
+            break;
+          case 'u':
+            escapeLength = 2;
+            unicodeEscape = 0;
+            break;
+          default:
+            writeStringByte(b);
+        }
+      } else {
+        unicodeEscape = (unicodeEscape << 4) + Character.digit(b, 16);
+        if (++escapeLength == 6) {
+          escapeLength = 0;
+          writeEscapedChar((char) unicodeEscape);
+        }
+      }
+    }
+
+    private void writeEscapedChar(char c) {
+      String decoded;
+      if (Character.isHighSurrogate(c)) {
+        highSurrogate = c;
+        return;
+      } else if (Character.isLowSurrogate(c) && highSurrogate != 0) {
+        decoded = new String(new char[]{highSurrogate, c});
+      } else {
+        decoded = String.valueOf(c);
+      }
+      highSurrogate = 0;
+      for (byte b : decoded.getBytes(StandardCharsets.UTF_8)) {
+        writeStringByte(b);
+      }
+    }
+
+    private void writeStringByte(byte b) {
+      if (inName) {
+        if (isNameRelevant()) {
+          name.write(b);
+        }
+      } else if (!rawCapture) {
+        capture(b);
+      }
+    }
+
+    // names are only needed when all the containers up to the current one match the path
+    private boolean isNameRelevant() {
+      return matchedDepth == containers.size() - 1 && containers.size() <= path.length();
+    }
+
+    private void endName() {
+      Container container = containers.get(containers.size() - 1);
+      container.memberName = isNameRelevant() && !name.isExceeded()
+          ? name.toValue(name.size()) : null;
+      updateMatchedDepth();
+      state = State.MEMBER_VALUE;
+    }
+
+    private void updateMatchedDepth() {
+      int depth = containers.size() - 1;
+      if (matchedDepth < depth) {
+        return;
+      }
+      Container container = containers.get(depth);
+      Object segment = depth < path.length() ? path.get(depth) : null;
+      boolean matches = container.array ? Integer.valueOf(container.index).equals(segment)
+          : container.memberName != null && container.memberName.equals(segment);
+      matchedDepth = matches ? depth + 1 : depth;
+    }
+
+    private void startValue(boolean container) {
+      if (capturing || matchedDepth != containers.size()
+          || containers.size() != path.length()) {
+        return;
+      }
+      capturing = true;
+      rawCapture = container;
+      captureDepth = containers.size();
+    }
+
+    private void capture(byte b) {
+      if (capturing) {
+        value.write(b);
+      }
+    }
+
+    private void endValue() {
+      state = State.AFTER_VALUE;
+      if (capturing && containers.size() == captureDepth) {
+        result = value.isExceeded() ? null : value.toValue(value.size());
+        done = true;
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public String getValue() {
+      if (!done && capturing && state == State.LITERAL) {
+        endValue();
+      }
+      return result;
+    }
+
+  }
+
+}
@@ -0,0 +1,330 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import org.eclipse.jetty.client.HttpContentResponse;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpHeaderValue;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Response listener which processes the response body as it arrives, instead of always
+ * aggregating it like Jetty {@link org.eclipse.jetty.client.util.FutureResponseListener}.
+ *
+ * <p>Each chunk is consumed while the listener is invoked, so the network buffer is returned to
+ * the pool right after. When the body is discarded only its size is kept, and when a capture
+ * limit is set only the first bytes of the body are kept, so the memory used by a request doesn't
+ * depend on the size of the response. Additional processing of the body (like computing its
+ * digest) can be plugged with {@link ResponseContentConsumer}s.
+ *
+ * <p>The download can also be stopped early (resetting the stream) once the headers, a number of
+ * bytes or some time has been received, in which case the response is completed with the part of
+ * the body received so far instead of failing.
+ */
+public class StreamingResponseListener extends Response.Listener.Adapter implements
+    Future<ContentResponse> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StreamingResponseListener.class);
+  private static final byte[] EMPTY_CONTENT = new byte[0];
+  private final CountDownLatch latch = new CountDownLatch(1);
+  private final Request request;
+  private final int maxBufferSize;
+  private boolean discardBody;
+  private final int captureLimit;
+  private final List<ResponseContentConsumer> contentConsumers = new ArrayList<>();
+  private Predicate<Response> discardBodyCondition;
+  private volatile Exception earlyAbortCause;
+  private long abortAfterBytes = -1;
+  private long abortAfterMillis;
+  private Scheduler scheduler;
+  private Scheduler.Task abortTask;
+  private final ResponseContentConsumer decodedContentConsumer = this::processContent;
+  private ByteBufferPool decodingBufferPool;
+  private ResponseContentDecoder decoder;
+  private byte[] buffer = EMPTY_CONTENT;
+  private int bufferedSize;
+  private long bodySize;
+  private boolean truncated;
+  private volatile boolean abortingEarly;
+  private boolean earlyAborted;
+  private ContentResponse response;
+  private Throwable failure;
+  private volatile boolean cancelled;
+
+  /**
+   * @param captureLimit when greater than 0, only the given number of bytes of the body are kept
+   * and the rest is just counted, instead of failing when the body exceeds maxBufferSize.
+   */
+  public StreamingResponseListener(Request request, int maxBufferSize, boolean discardBody,
+      int captureLimit) {
+    this.request = request;
+    this.maxBufferSize = maxBufferSize;
+    this.discardBody = discardBody;
+    this.captureLimit = captureLimit;
+  }
+
+  public void addContentConsumer(ResponseContentConsumer consumer) {
+    contentConsumers.add(consumer);
+  }
+
+  /**
+   * @param condition evaluated when the response headers are received to discard the body even
+   * when the listener was not created to discard it.
+   */
+  public void setDiscardBodyCondition(Predicate<Response> condition) {
+    this.discardBodyCondition = condition;
+  }
+
+  /**
+   * @param bytes number of body bytes after which the download is stopped. 0 stops it right
+   * after receiving the response headers, and a negative value disables it.
+   */
+  public void setAbortAfterBytes(long bytes) {
+    this.abortAfterBytes = bytes;
+  }
+
+  /**
+   * @param millis time, since the response headers are received, after which the download is
+   * stopped. 0 or a negative value disables it.
+   * @param scheduler used to stop the download even when no content is received.
+   */
+  public void setAbortAfterMillis(long millis, Scheduler scheduler) {
+    this.abortAfterMillis = millis;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Makes the listener decode gzip and deflate encoded bodies while they are received, so the
+   * rest of the processing (buffering, consumers, etc.) gets the decoded content.
+   *
+   * @param bufferPool pool used to get the buffers for the decoded content.
+   */
+  public void enableContentDecoding(ByteBufferPool bufferPool) {
+    this.decodingBufferPool = bufferPool;
+  }
+
+  @Override
+  public void onHeaders(Response response) {
+    if (abortAfterBytes == 0) {
+      abortEarly(response);
+      return;
+    }
+    if (abortAfterMillis > 0) {
+      abortTask = scheduler.schedule(() -> abortEarly(response), abortAfterMillis,
+          TimeUnit.MILLISECONDS);
+    }
+    if (decodingBufferPool != null) {
+      decoder = ResponseContentDecoder.forEncoding(
+          response.getHeaders().get(HttpHeader.CONTENT_ENCODING), decodingBufferPool);
+    }
+    if (discardBodyCondition != null && discardBodyCondition.test(response)) {
+      discardBody = true;
+    }
+    if (discardBody) {
+      return;
+    }
+    long length = response.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH);
+    if (captureLimit > 0) {
+      if (length > 0) {
+        buffer = new byte[(int) Math.min(length, captureLimit)];
+      }
+    } else if (length > maxBufferSize && decoder == null) {
+      response.abort(buildCapacityExceededException());
+    } else if (length > 0) {
+      buffer = new byte[(int) Math.min(length, maxBufferSize)];
+    }
+  }
+
+  private synchronized void abortEarly(Response response) {
+    if (abortingEarly) {
+      return;
+    }
+    // created only when needed, since filling the stack trace is expensive for every request
+    earlyAbortCause = new Exception("Response download stopped early");
+    abortingEarly = true;
+    response.abort(earlyAbortCause);
+  }
+
+  private IllegalArgumentException buildCapacityExceededException() {
+    return new IllegalArgumentException("Buffering capacity " + maxBufferSize + " exceeded");
+  }
+
+  @Override
+  public void onContent(Response response, ByteBuffer content) {
+    if (abortingEarly) {
+      return;
+    }
+    bodySize += content.remaining();
+    try {
+      if (decoder != null) {
+        decoder.decode(content, decodedContentConsumer);
+      } else {
+        processContent(content);
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      response.abort(e);
+      return;
+    }
+    content.position(content.limit());
+    if (abortAfterBytes > 0 && bodySize >= abortAfterBytes) {
+      abortEarly(response);
+    }
+  }
+
+  private void processContent(ByteBuffer content) throws IOException {
+    int length = content.remaining();
+    for (ResponseContentConsumer consumer : contentConsumers) {
+      consumer.onContent(content.slice());
+    }
+    if (discardBody) {
+      return;
+    }
+    if (captureLimit > 0) {
+      int capturedLength = Math.min(length, captureLimit - bufferedSize);
+      if (capturedLength < length) {
+        truncated = true;
+      }
+      if (capturedLength > 0) {
+        append(content, capturedLength, captureLimit);
+      }
+    } else if (bufferedSize + length > maxBufferSize) {
+      throw buildCapacityExceededException();
+    } else {
+      append(content, length, maxBufferSize);
+    }
+  }
+
+  private void append(ByteBuffer content, int length, int capacity) {
+    if (bufferedSize + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer,
+          (int) Math.min(capacity, Math.max(bufferedSize + length, buffer.length * 2L)));
+    }
+    content.get(buffer, bufferedSize, length);
+    bufferedSize += length;
+  }
+
+  @Override
+  public void onComplete(Result result) {
+    if (abortTask != null) {
+      abortTask.cancel();
+    }
+    if (decoder != null) {
+      closeDecoder();
+    }
+    earlyAborted = result.isFailed() && earlyAbortCause != null
+        && result.getFailure() == earlyAbortCause;
+    if (result.isFailed() && !earlyAborted && !isBodyRejected(result)) {
+      failure = result.getFailure();
+    } else {
+      byte[] content = bufferedSize == buffer.length ? buffer
+          : Arrays.copyOf(buffer, bufferedSize);
+      response = new HttpContentResponse(result.getResponse(), content, null, null);
+    }
+    latch.countDown();
+  }
+
+  /*
+   When the request expects 100-continue and the server answers with a final response instead,
+   Jetty fails the request to not send the body, but the response is the one to report.
+   */
+  private boolean isBodyRejected(Result result) {
+    return result.getResponseFailure() == null && result.getRequestFailure() != null
+        && request.getHeaders().contains(HttpHeader.EXPECT, HttpHeaderValue.CONTINUE.asString());
+  }
+
+  private void closeDecoder() {
+    try {
+      decoder.close();
+    } catch (IOException e) {
+      LOG.warn("Error while releasing response decoder", e);
+    }
+  }
+
+  /**
+   * @return the number of body bytes received, including the ones not kept in memory.
+   */
+  public long getBodySize() {
+    return bodySize;
+  }
+
+  /**
+   * @return the number of body bytes after decoding the content encoding, or the received bytes
+   * when the body was not decoded.
+   */
+  public long getDecodedBodySize() {
+    return decoder != null ? decoder.getDecodedSize() : bodySize;
+  }
+
+  /**
+   * @return true when part of the body was not kept due to the capture limit.
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * @return true when the download was stopped before receiving the whole body.
+   */
+  public boolean isEarlyAborted() {
+    return earlyAborted;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    cancelled = true;
+    return request.abort(new CancellationException());
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public boolean isDone() {
+    return latch.getCount() == 0 || isCancelled();
+  }
+
+  @Override
+  public ContentResponse get() throws InterruptedException, ExecutionException {
+    latch.await();
+    return getResult();
+  }
+
+  @Override
+  public ContentResponse get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    if (!latch.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return getResult();
+  }
+
+  private ContentResponse getResult() throws ExecutionException {
+    if (isCancelled()) {
+      throw (CancellationException) new CancellationException().initCause(failure);
+    }
+    if (failure != null) {
+      throw new ExecutionException(failure);
+    }
+    return response;
+  }
+
+}
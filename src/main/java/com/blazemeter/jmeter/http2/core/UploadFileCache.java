@@ -0,0 +1,123 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.eclipse.jetty.client.api.Request.Content;
+import org.eclipse.jetty.client.util.ByteBufferRequestContent;
+import org.eclipse.jetty.client.util.PathRequestContent;
+
+/**
+ * Cache of uploaded files shared by all the threads, which keeps them memory-mapped (read-only)
+ * so each upload of the same file sends the mapped pages instead of opening and reading the file
+ * again.
+ *
+ * <p>Entries are validated with the file size and modification time on each use, and the least
+ * recently used ones are dropped when the mapped bytes exceed the cache size. Files bigger than
+ * the cache size are not cached and are read from disk as usual.
+ *
+ * <p>Cached files must not change during the test: a file truncated while a request reads its
+ * mapped pages makes the JVM crash (SIGBUS), which validation on each use can't prevent.
+ */
+public class UploadFileCache {
+
+  private final long maxSize;
+  private final Map<String, UploadFile> files = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+
+  /**
+   * @param maxSize max number of bytes of the mapped files, or 0 to not cache files.
+   */
+  public UploadFileCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public UploadFile find(String filePath) throws IOException {
+    Path path = Paths.get(filePath);
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    if (maxSize <= 0 || attributes.size() > maxSize || attributes.size() > Integer.MAX_VALUE) {
+      return new UploadFile(path, lastModified, null);
+    }
+    synchronized (this) {
+      UploadFile ret = files.get(filePath);
+      if (ret != null && ret.lastModified == lastModified
+          && ret.content.capacity() == attributes.size()) {
+        return ret;
+      }
+    }
+    UploadFile ret = new UploadFile(path, lastModified, map(path));
+    synchronized (this) {
+      UploadFile previous = files.put(filePath, ret);
+      if (previous != null) {
+        size -= previous.content.capacity();
+      }
+      size += ret.content.capacity();
+      // mapped buffers are unmapped when garbage collected, once no request is using them
+      Iterator<UploadFile> it = files.values().iterator();
+      while (size > maxSize && it.hasNext()) {
+        size -= it.next().content.capacity();
+        it.remove();
+      }
+    }
+    return ret;
+  }
+
+  private static ByteBuffer map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return channel.map(MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public synchronized void clear() {
+    files.clear();
+    size = 0;
+  }
+
+  public static class UploadFile {
+
+    private final Path path;
+    private final String fileName;
+    private final long lastModified;
+    private final ByteBuffer content;
+
+    private UploadFile(Path path, long lastModified, ByteBuffer content) {
+      this.path = path;
+      this.fileName = path.getFileName().toString();
+      this.lastModified = lastModified;
+      this.content = content;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    public boolean isCached() {
+      return content != null;
+    }
+
+    /**
+     * @return the content of the request sending the file. Cached files share the mapped buffer,
+     * which the request content only slices, so it is never modified.
+     */
+    public Content buildContent(String contentType) throws IOException {
+      return content != null ? new ByteBufferRequestContent(contentType, content)
+          : new PathRequestContent(contentType, path);
+    }
+
+  }
+
+}
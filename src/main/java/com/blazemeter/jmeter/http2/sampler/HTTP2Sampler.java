@@ -1,18 +1,35 @@
 package com.blazemeter.jmeter.http2.sampler;
 
+import com.blazemeter.jmeter.http2.core.CircuitBreaker;
+import com.blazemeter.jmeter.http2.core.CircuitBreaker.Permit;
+import com.blazemeter.jmeter.http2.core.CircuitBreakerOpenException;
 import com.blazemeter.jmeter.http2.core.HTTP2JettyClient;
+import com.blazemeter.jmeter.http2.core.RequestPlan;
 import com.helger.commons.annotation.VisibleForTesting;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.jmeter.engine.event.LoopIterationEvent;
 import org.apache.jmeter.engine.event.LoopIterationListener;
 import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
 import org.apache.jmeter.protocol.http.sampler.HTTPSamplerBase;
 import org.apache.jmeter.protocol.http.util.HTTPConstants;
+import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.ThreadListener;
 import org.apache.jmeter.threads.JMeterContextService;
@@ -21,16 +38,76 @@ import org.apache.jmeter.util.JMeterUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListener, ThreadListener {
+public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListener, ThreadListener,
+    Interruptible {
 
+  public static final String CAPTURE_LIMIT_PROPERTY = "HTTP2Sampler.capture_limit";
+  public static final String RESPONSE_DIGEST_PROPERTY = "HTTP2Sampler.response_digest";
+  public static final String RESPONSE_FILE_PROPERTY = "HTTP2Sampler.response_file";
+  public static final String ABORT_AFTER_BYTES_PROPERTY = "HTTP2Sampler.abort_after_bytes";
+  public static final String ABORT_AFTER_MILLIS_PROPERTY = "HTTP2Sampler.abort_after_millis";
+  public static final String CAPTURE_STATUS_PATTERN_PROPERTY =
+      "HTTP2Sampler.capture_status_pattern";
+  public static final String CAPTURE_MIN_TIME_PROPERTY = "HTTP2Sampler.capture_min_time";
+  public static final String RANGE_SEGMENTS_PROPERTY = "HTTP2Sampler.range_segments";
+  public static final String STREAMING_ASSERTION_TYPE_PROPERTY =
+      "HTTP2Sampler.streaming_assertion.type";
+  public static final String STREAMING_ASSERTION_PATTERN_PROPERTY =
+      "HTTP2Sampler.streaming_assertion.pattern";
+  public static final String STREAMING_ASSERTION_WINDOW_PROPERTY =
+      "HTTP2Sampler.streaming_assertion.window";
+  public static final String STREAMING_ASSERTION_MIN_SIZE_PROPERTY =
+      "HTTP2Sampler.streaming_assertion.min_size";
+  public static final String STREAMING_ASSERTION_MAX_SIZE_PROPERTY =
+      "HTTP2Sampler.streaming_assertion.max_size";
+  public static final String STREAMING_EXTRACTOR_TYPE_PROPERTY =
+      "HTTP2Sampler.streaming_extractor.type";
+  public static final String STREAMING_EXTRACTOR_VARIABLE_PROPERTY =
+      "HTTP2Sampler.streaming_extractor.variable";
+  public static final String STREAMING_EXTRACTOR_EXPRESSION_PROPERTY =
+      "HTTP2Sampler.streaming_extractor.expression";
+  public static final String STREAMING_EXTRACTOR_RIGHT_BOUNDARY_PROPERTY =
+      "HTTP2Sampler.streaming_extractor.right_boundary";
+  public static final String STREAMING_EXTRACTOR_DEFAULT_PROPERTY =
+      "HTTP2Sampler.streaming_extractor.default";
+  public static final String GENERATED_BODY_TYPE_PROPERTY = "HTTP2Sampler.generated_body.type";
+  public static final String GENERATED_BODY_PATTERN_PROPERTY =
+      "HTTP2Sampler.generated_body.pattern";
+  public static final String GENERATED_BODY_SIZE_PROPERTY = "HTTP2Sampler.generated_body.size";
+  public static final String REQUEST_COMPRESSION_PROPERTY = "HTTP2Sampler.request_compression";
+  public static final String BINARY_BODY_FORMAT_PROPERTY = "HTTP2Sampler.binary_body.format";
+  public static final String EXPECT_CONTINUE_THRESHOLD_PROPERTY =
+      "HTTP2Sampler.expect_continue_threshold";
   private static final Logger LOG = LoggerFactory.getLogger(HTTP2Sampler.class);
   private static final ThreadLocal<Map<HTTP2ClientKey, HTTP2JettyClient>> CONNECTIONS =
       ThreadLocal
           .withInitial(HashMap::new);
+  private static final Map<HTTP2ClientKey, CircuitBreaker> CIRCUIT_BREAKERS =
+      new ConcurrentHashMap<>();
   private static final String HTTP1_UPGRADE_PROPERTY = "HTTP2Sampler.http1_upgrade";
-  private final transient Callable<HTTP2JettyClient> clientFactory;
+  private static final String DISCARD_RESPONSE_BODY_PROPERTY =
+      "HTTP2Sampler.discard_response_body";
+  private static final String DECODE_RESPONSE_BODY_PROPERTY = "HTTP2Sampler.decode_response_body";
+  private static final String CAPTURE_FAILURES_ONLY_PROPERTY =
+      "HTTP2Sampler.capture_failures_only";
+  private final transient ClientFactory clientFactory;
   private final boolean dumpAtThreadEnd = JMeterUtils.getPropDefault(
       "httpJettyClient.DumpAtThreadEnd", false);
+  private final ConnectionResetMode newUserConnectionResetMode = parseConnectionResetMode(
+      JMeterUtils.getPropDefault("httpJettyClient.newUserConnectionResetMode",
+          ConnectionResetMode.NONE.toString()));
+  private final long shutdownTimeout = JMeterUtils.getPropDefault(
+      "httpJettyClient.shutdownTimeout", 5000L);
+  private final int circuitBreakerFailureThreshold = JMeterUtils.getPropDefault(
+      "httpJettyClient.circuitBreaker.failureThreshold", 0);
+  private final long circuitBreakerCoolDown = JMeterUtils.getPropDefault(
+      "httpJettyClient.circuitBreaker.coolDown", 10000L);
+  private final int circuitBreakerHalfOpenProbes = JMeterUtils.getPropDefault(
+      "httpJettyClient.circuitBreaker.halfOpenProbes", 1);
+  private transient volatile HTTP2JettyClient activeClient;
+  private transient HTTP2ClientKey lastClientKey;
+  private transient HTTP2ClientKey lastCircuitBreakerKey;
+  private final transient RequestPlan requestPlan = new RequestPlan();
 
   public HTTP2Sampler() {
     setName("HTTP2 Sampler");
@@ -40,7 +117,7 @@ public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListen
 
   @VisibleForTesting
   public HTTP2Sampler(Callable<HTTP2JettyClient> clientFactory) {
-    this.clientFactory = clientFactory;
+    this.clientFactory = k -> clientFactory.call();
   }
 
   public void setHttp1UpgradeEnabled(boolean http1UpgradeSelected) {
@@ -51,19 +128,361 @@ public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListen
     return getPropertyAsBoolean(HTTP1_UPGRADE_PROPERTY);
   }
 
+  public void setDiscardResponseBody(boolean discardResponseBody) {
+    setProperty(DISCARD_RESPONSE_BODY_PROPERTY, discardResponseBody, false);
+  }
+
+  public boolean isDiscardResponseBody() {
+    return getPropertyAsBoolean(DISCARD_RESPONSE_BODY_PROPERTY);
+  }
+
+  public void setCaptureFailuresOnly(boolean captureFailuresOnly) {
+    setProperty(CAPTURE_FAILURES_ONLY_PROPERTY, captureFailuresOnly, false);
+  }
+
+  public boolean isCaptureFailuresOnly() {
+    return getPropertyAsBoolean(CAPTURE_FAILURES_ONLY_PROPERTY);
+  }
+
+  public void setCaptureStatusPattern(String statusPattern) {
+    setProperty(CAPTURE_STATUS_PATTERN_PROPERTY, statusPattern, "");
+  }
+
+  public String getCaptureStatusPattern() {
+    return getPropertyAsString(CAPTURE_STATUS_PATTERN_PROPERTY).trim();
+  }
+
+  public void setCaptureMinTime(String minTime) {
+    setProperty(CAPTURE_MIN_TIME_PROPERTY, minTime, "");
+  }
+
+  public long getCaptureMinTime() {
+    return getOptionalLongProperty(CAPTURE_MIN_TIME_PROPERTY);
+  }
+
+  public void setDecodeResponseBody(boolean decodeResponseBody) {
+    setProperty(DECODE_RESPONSE_BODY_PROPERTY, decodeResponseBody, false);
+  }
+
+  public boolean isDecodeResponseBody() {
+    return getPropertyAsBoolean(DECODE_RESPONSE_BODY_PROPERTY);
+  }
+
+  public void setCaptureLimit(String captureLimit) {
+    setProperty(CAPTURE_LIMIT_PROPERTY, captureLimit, "");
+  }
+
+  public int getCaptureLimit() {
+    return getPropertyAsInt(CAPTURE_LIMIT_PROPERTY, 0);
+  }
+
+  public void setResponseDigestAlgorithm(String algorithm) {
+    setProperty(RESPONSE_DIGEST_PROPERTY, algorithm, "");
+  }
+
+  /**
+   * @return the algorithm used to save the response as a hash, or an empty string when the
+   * response is saved as is. MD5 is used when the "Save response as MD5 hash" option of HTTP
+   * Request Defaults is enabled.
+   */
+  public String getResponseDigestAlgorithm() {
+    String ret = getPropertyAsString(RESPONSE_DIGEST_PROPERTY);
+    return ret.isEmpty() && useMD5() ? "MD5" : ret;
+  }
+
+  public void setResponseFilePath(String path) {
+    setProperty(RESPONSE_FILE_PROPERTY, path, "");
+  }
+
+  public String getResponseFilePath() {
+    return getPropertyAsString(RESPONSE_FILE_PROPERTY).trim();
+  }
+
+  public void setAbortAfterBytes(String bytes) {
+    setProperty(ABORT_AFTER_BYTES_PROPERTY, bytes, "");
+  }
+
+  /**
+   * @return number of body bytes after which the response download is stopped, 0 to stop it
+   * after the response headers, or -1 when the whole response is downloaded.
+   */
+  public long getAbortAfterBytes() {
+    return getOptionalLongProperty(ABORT_AFTER_BYTES_PROPERTY);
+  }
+
+  /*
+   Empty values (the default) return -1, which disables the option. Invalid values disable it too,
+   instead of failing every sample (or being taken as 0, which means abort after the headers for
+   getAbortAfterBytes).
+   */
+  private long getOptionalLongProperty(String name) {
+    String value = getPropertyAsString(name).trim();
+    if (value.isEmpty()) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      LOG.warn("Invalid {} value '{}', ignoring it", name, value);
+      return -1;
+    }
+  }
+
+  public void setAbortAfterMillis(String millis) {
+    setProperty(ABORT_AFTER_MILLIS_PROPERTY, millis, "");
+  }
+
+  public long getAbortAfterMillis() {
+    return getPropertyAsLong(ABORT_AFTER_MILLIS_PROPERTY, 0);
+  }
+
+  public void setRangeSegments(String segments) {
+    setProperty(RANGE_SEGMENTS_PROPERTY, segments, "");
+  }
+
+  public int getRangeSegments() {
+    return getPropertyAsInt(RANGE_SEGMENTS_PROPERTY, 0);
+  }
+
+  /**
+   * @return the request parts cached for this sampler instance, to avoid building them again on
+   * each sample when the configuration doesn't change.
+   */
+  public RequestPlan getRequestPlan() {
+    return requestPlan;
+  }
+
+  /**
+   * @param type one of SUBSTRING, REGEX or BYTES, or empty to not check the body content.
+   */
+  public void setStreamingAssertionType(String type) {
+    setProperty(STREAMING_ASSERTION_TYPE_PROPERTY, type, "");
+  }
+
+  public String getStreamingAssertionType() {
+    return getPropertyAsString(STREAMING_ASSERTION_TYPE_PROPERTY);
+  }
+
+  public void setStreamingAssertionPattern(String pattern) {
+    setProperty(STREAMING_ASSERTION_PATTERN_PROPERTY, pattern, "");
+  }
+
+  public String getStreamingAssertionPattern() {
+    return getPropertyAsString(STREAMING_ASSERTION_PATTERN_PROPERTY);
+  }
+
+  public void setStreamingAssertionWindow(String window) {
+    setProperty(STREAMING_ASSERTION_WINDOW_PROPERTY, window, "");
+  }
+
+  public int getStreamingAssertionWindow() {
+    return getPropertyAsInt(STREAMING_ASSERTION_WINDOW_PROPERTY, 8192);
+  }
+
+  public void setStreamingAssertionMinSize(String minSize) {
+    setProperty(STREAMING_ASSERTION_MIN_SIZE_PROPERTY, minSize, "");
+  }
+
+  public long getStreamingAssertionMinSize() {
+    return getOptionalLongProperty(STREAMING_ASSERTION_MIN_SIZE_PROPERTY);
+  }
+
+  public void setStreamingAssertionMaxSize(String maxSize) {
+    setProperty(STREAMING_ASSERTION_MAX_SIZE_PROPERTY, maxSize, "");
+  }
+
+  public long getStreamingAssertionMaxSize() {
+    return getOptionalLongProperty(STREAMING_ASSERTION_MAX_SIZE_PROPERTY);
+  }
+
+  public void setStreamingExtractorType(String type) {
+    setProperty(STREAMING_EXTRACTOR_TYPE_PROPERTY, type, "");
+  }
+
+  public String getStreamingExtractorType() {
+    return getPropertyAsString(STREAMING_EXTRACTOR_TYPE_PROPERTY);
+  }
+
+  public void setStreamingExtractorVariable(String variable) {
+    setProperty(STREAMING_EXTRACTOR_VARIABLE_PROPERTY, variable, "");
+  }
+
+  public String getStreamingExtractorVariable() {
+    return getPropertyAsString(STREAMING_EXTRACTOR_VARIABLE_PROPERTY).trim();
+  }
+
+  public void setStreamingExtractorExpression(String expression) {
+    setProperty(STREAMING_EXTRACTOR_EXPRESSION_PROPERTY, expression, "");
+  }
+
+  public String getStreamingExtractorExpression() {
+    return getPropertyAsString(STREAMING_EXTRACTOR_EXPRESSION_PROPERTY);
+  }
+
+  public void setStreamingExtractorRightBoundary(String rightBoundary) {
+    setProperty(STREAMING_EXTRACTOR_RIGHT_BOUNDARY_PROPERTY, rightBoundary, "");
+  }
+
+  public String getStreamingExtractorRightBoundary() {
+    return getPropertyAsString(STREAMING_EXTRACTOR_RIGHT_BOUNDARY_PROPERTY);
+  }
+
+  public void setStreamingExtractorDefault(String defaultValue) {
+    setProperty(STREAMING_EXTRACTOR_DEFAULT_PROPERTY, defaultValue, "");
+  }
+
+  public String getStreamingExtractorDefault() {
+    return getPropertyAsString(STREAMING_EXTRACTOR_DEFAULT_PROPERTY);
+  }
+
+  /**
+   * @param type one of RANDOM, TEMPLATE or JSON_ARRAY, or empty to send the body configured in
+   * the sampler.
+   */
+  public void setGeneratedBodyType(String type) {
+    setProperty(GENERATED_BODY_TYPE_PROPERTY, type, "");
+  }
+
+  public String getGeneratedBodyType() {
+    return getPropertyAsString(GENERATED_BODY_TYPE_PROPERTY);
+  }
+
+  public void setGeneratedBodyPattern(String pattern) {
+    setProperty(GENERATED_BODY_PATTERN_PROPERTY, pattern, "");
+  }
+
+  public String getGeneratedBodyPattern() {
+    return getPropertyAsString(GENERATED_BODY_PATTERN_PROPERTY);
+  }
+
+  public void setGeneratedBodySize(String size) {
+    setProperty(GENERATED_BODY_SIZE_PROPERTY, size, "");
+  }
+
+  public long getGeneratedBodySize() {
+    return getPropertyAsLong(GENERATED_BODY_SIZE_PROPERTY, 0);
+  }
+
+  /**
+   * @param compression gzip or deflate to compress the request body with such Content-Encoding,
+   * or empty to send it as is.
+   */
+  public void setRequestCompression(String compression) {
+    setProperty(REQUEST_COMPRESSION_PROPERTY, compression, "");
+  }
+
+  public String getRequestCompression() {
+    return getPropertyAsString(REQUEST_COMPRESSION_PROPERTY);
+  }
+
+  /**
+   * @param format BASE64 or HEX to send the raw body decoded from such text, VARIABLE to send the
+   * byte array stored in the variable named by the raw body, or empty to send the raw body text.
+   */
+  public void setBinaryBodyFormat(String format) {
+    setProperty(BINARY_BODY_FORMAT_PROPERTY, format, "");
+  }
+
+  public String getBinaryBodyFormat() {
+    return getPropertyAsString(BINARY_BODY_FORMAT_PROPERTY);
+  }
+
+  /**
+   * @param threshold body size (in bytes) above which the request is sent with Expect:
+   * 100-continue, or empty to never send it.
+   */
+  public void setExpectContinueThreshold(String threshold) {
+    setProperty(EXPECT_CONTINUE_THRESHOLD_PROPERTY, threshold, "");
+  }
+
+  public long getExpectContinueThreshold() {
+    return getOptionalLongProperty(EXPECT_CONTINUE_THRESHOLD_PROPERTY);
+  }
+
   @Override
   protected HTTPSampleResult sample(URL url, String method, boolean areFollowingRedirect,
       int depth) {
     HTTPSampleResult result = buildResult(url, method);
+    CircuitBreaker circuitBreaker = findCircuitBreaker(url);
+    Permit permit = circuitBreaker != null ? circuitBreaker.tryAcquire() : null;
+    if (permit == Permit.REJECTED) {
+      return buildErrorResult(new CircuitBreakerOpenException(String.format(
+          "Requests to %s://%s are rejected after %d consecutive connection failures",
+          url.getProtocol(), url.getAuthority(), circuitBreaker.getConsecutiveFailures())),
+          result);
+    }
+    boolean outcome = false;
+    HTTP2JettyClient client = null;
+    long committedRequests = 0;
     try {
-      HTTP2JettyClient client = clientFactory.call();
-      return client.sample(this, result, areFollowingRedirect, depth);
+      client = clientFactory.getClient(findClientKey());
+      activeClient = client;
+      committedRequests = client.getCommittedRequests();
+      HTTPSampleResult ret = client.sample(this, result, areFollowingRedirect, depth);
+      outcome = circuitBreaker != null
+          && notifyConnected(circuitBreaker, client, committedRequests);
+      return ret;
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       return buildErrorResult(e, result);
     } catch (Exception e) {
+      if (circuitBreaker != null) {
+        if (isConnectFailure(e)) {
+          circuitBreaker.onConnectFailure();
+          outcome = true;
+        } else {
+          outcome = client != null && notifyConnected(circuitBreaker, client, committedRequests);
+        }
+      }
       return buildErrorResult(e, result);
+    } finally {
+      activeClient = null;
+      if (permit == Permit.PROBE && !outcome) {
+        circuitBreaker.onProbeWithoutOutcome();
+      }
+    }
+  }
+
+  /*
+   Failures before sending any request (like invalid sampler configuration) or cached responses
+   say nothing about the destination, so only samples which sent a request close the breaker.
+   */
+  private static boolean notifyConnected(CircuitBreaker circuitBreaker, HTTP2JettyClient client,
+      long previousCommittedRequests) {
+    if (client.getCommittedRequests() == previousCommittedRequests) {
+      return false;
     }
+    circuitBreaker.onConnected();
+    return true;
+  }
+
+  private CircuitBreaker findCircuitBreaker(URL url) {
+    if (circuitBreakerFailureThreshold <= 0) {
+      return null;
+    }
+    lastCircuitBreakerKey = findConnectionKey(url, lastCircuitBreakerKey);
+    return CIRCUIT_BREAKERS.computeIfAbsent(lastCircuitBreakerKey,
+        k -> new CircuitBreaker(circuitBreakerFailureThreshold, circuitBreakerCoolDown,
+            circuitBreakerHalfOpenProbes));
+  }
+
+  private static boolean isConnectFailure(Throwable e) {
+    Throwable cause = e;
+    while (cause != null) {
+      if (cause instanceof ConnectException || cause instanceof NoRouteToHostException
+          || cause instanceof UnknownHostException || cause instanceof SocketTimeoutException) {
+        return true;
+      }
+      cause = cause.getCause();
+    }
+    return false;
+  }
+
+  @Override
+  public boolean interrupt() {
+    HTTP2JettyClient client = activeClient;
+    return client != null && client.abortRequests(
+        new InterruptedIOException("Request interrupted"));
   }
 
   private HTTPSampleResult buildResult(URL url, String method) {
@@ -84,23 +503,39 @@ public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListen
     return errorResult(e, result);
   }
 
-  private HTTP2JettyClient buildClient() throws Exception {
+  private HTTP2JettyClient buildClient(HTTP2ClientKey connectionKey) throws Exception {
     HTTP2JettyClient client = new HTTP2JettyClient(isHttp1UpgradeEnabled());
     client.start();
-    CONNECTIONS.get().put(buildConnectionKey(), client);
+    CONNECTIONS.get().put(connectionKey, client);
     return client;
   }
 
-  private HTTP2ClientKey buildConnectionKey() throws MalformedURLException {
-    return new HTTP2ClientKey(getUrl(), !getProxyHost().isEmpty(), getProxyScheme(), getProxyHost(),
-        getProxyPortInt());
+  /*
+   Clients are kept per sampler destination (instead of the sampled URL), so embedded resources
+   and redirects followed by JMeter reuse the client of the sampler.
+   */
+  private HTTP2ClientKey findClientKey() throws MalformedURLException {
+    lastClientKey = findConnectionKey(getUrl(), lastClientKey);
+    return lastClientKey;
   }
 
-  private HTTP2JettyClient getClient() throws Exception {
-    Map<HTTP2ClientKey, HTTP2JettyClient> clients = CONNECTIONS.get();
-    HTTP2ClientKey key = buildConnectionKey();
-    return clients.containsKey(key) ? clients.get(key)
-        : buildClient();
+  /*
+   Reuses the key of the previous sample when the destination doesn't change, which is the usual
+   case, to avoid building (and hashing) a new key for each sample.
+   */
+  private HTTP2ClientKey findConnectionKey(URL url, HTTP2ClientKey previous) {
+    String proxyScheme = getProxyScheme();
+    String proxyHost = getProxyHost();
+    int proxyPort = getProxyPortInt();
+    if (previous != null && previous.matches(url, proxyScheme, proxyHost, proxyPort)) {
+      return previous;
+    }
+    return new HTTP2ClientKey(url, !proxyHost.isEmpty(), proxyScheme, proxyHost, proxyPort);
+  }
+
+  private HTTP2JettyClient getClient(HTTP2ClientKey connectionKey) throws Exception {
+    HTTP2JettyClient client = CONNECTIONS.get().get(connectionKey);
+    return client != null ? client : buildClient(connectionKey);
   }
 
   public HTTPSampleResult resultProcessing(final boolean pAreFollowingRedirect,
@@ -113,19 +548,61 @@ public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListen
     JMeterVariables jMeterVariables = JMeterContextService.getContext().getVariables();
     if (!jMeterVariables.isSameUserOnNextIteration()) {
       clearUserStores();
+      resetUserConnections();
     }
   }
 
-  private void closeConnections() {
-    Map<HTTP2ClientKey, HTTP2JettyClient> clients = CONNECTIONS.get();
-    for (HTTP2JettyClient client : clients.values()) {
+  @VisibleForTesting
+  static ConnectionResetMode parseConnectionResetMode(String mode) {
+    try {
+      return ConnectionResetMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Unknown httpJettyClient.newUserConnectionResetMode '{}', using {}", mode,
+          ConnectionResetMode.NONE);
+      return ConnectionResetMode.NONE;
+    }
+  }
+
+  private void resetUserConnections() {
+    if (newUserConnectionResetMode == ConnectionResetMode.NONE) {
+      return;
+    }
+    boolean resumeTlsSessions = newUserConnectionResetMode == ConnectionResetMode.TLS_RESUMPTION;
+    for (HTTP2JettyClient client : CONNECTIONS.get().values()) {
       try {
-        client.stop();
+        client.closeConnections(resumeTlsSessions);
       } catch (Exception e) {
-        LOG.error("Error while closing connection", e);
+        LOG.error("Error while resetting user connections", e);
       }
     }
+  }
+
+  private void closeConnections() {
+    Map<HTTP2ClientKey, HTTP2JettyClient> clients = CONNECTIONS.get();
+    CompletableFuture<?>[] stops = clients.values().stream()
+        .map(HTTP2JettyClient::stopAsync)
+        .toArray(CompletableFuture[]::new);
     clients.clear();
+    try {
+      CompletableFuture.allOf(stops).get(shutdownTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.error("Error while closing connections", e);
+    } catch (TimeoutException e) {
+      LOG.warn("Connections were not closed after {} ms, leaving them to close in background",
+          shutdownTimeout);
+    }
+  }
+
+  @VisibleForTesting
+  static int getThreadClientsCount() {
+    return CONNECTIONS.get().size();
+  }
+
+  @VisibleForTesting
+  public static Collection<HTTP2JettyClient> getThreadClients() {
+    return CONNECTIONS.get().values();
   }
 
   private void dump() {
@@ -142,8 +619,9 @@ public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListen
   @Override
   public void testEnded() {
     super.testEnded();
+    CIRCUIT_BREAKERS.clear();
     HTTP2JettyClient.clearBufferPool();
-    System.gc(); // Force free memory
+    HTTP2JettyClient.clearUploadFileCache();
   }
 
   @Override
@@ -166,21 +644,47 @@ public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListen
     }
   }
 
+  enum ConnectionResetMode {
+    NONE,
+    FULL_HANDSHAKE,
+    TLS_RESUMPTION
+  }
+
+  private interface ClientFactory {
+
+    HTTP2JettyClient getClient(HTTP2ClientKey connectionKey) throws Exception;
+
+  }
+
   private static final class HTTP2ClientKey {
 
+    private final String protocol;
+    private final String authority;
     private final String target;
     private final boolean hasProxy;
     private final String proxyScheme;
     private final String proxyHost;
     private final int proxyPort;
+    private final int hashCode;
 
     private HTTP2ClientKey(URL url, boolean hasProxy, String proxyScheme, String proxyHost,
         int proxyPort) {
-      this.target = url.getProtocol() + "://" + url.getAuthority();
+      this.protocol = url.getProtocol();
+      this.authority = url.getAuthority();
+      this.target = protocol + "://" + authority;
       this.hasProxy = hasProxy;
       this.proxyScheme = proxyScheme;
       this.proxyHost = proxyHost;
       this.proxyPort = proxyPort;
+      this.hashCode = Objects.hash(target, hasProxy, proxyScheme, proxyHost, proxyPort);
+    }
+
+    private boolean matches(URL url, String proxyScheme, String proxyHost, int proxyPort) {
+      return protocol.equals(url.getProtocol())
+          && Objects.equals(authority, url.getAuthority())
+          && proxyPort == this.proxyPort
+          && proxyScheme.equals(this.proxyScheme)
+          && proxyHost.equals(this.proxyHost);
     }
 
     @Override
@@ -201,7 +705,7 @@ public class HTTP2Sampler extends HTTPSamplerBase implements LoopIterationListen
 
     @Override
     public int hashCode() {
-      return Objects.hash(target, hasProxy, proxyScheme, proxyHost, proxyPort);
+      return hashCode;
     }
   }
 }
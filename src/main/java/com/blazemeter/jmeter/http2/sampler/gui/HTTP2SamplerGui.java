@@ -80,6 +80,35 @@ public class HTTP2SamplerGui extends AbstractSamplerGui {
       http2Sampler.setProperty("version", getPluginVersion());
       http2SamplerPanel.getUrlConfigGui().modifyTestElement(http2Sampler);
       http2Sampler.setHttp1UpgradeEnabled(http2SamplerPanel.isHttp1UpgradeSelected());
+      http2Sampler.setDiscardResponseBody(http2SamplerPanel.isDiscardResponseBodySelected());
+      http2Sampler.setCaptureFailuresOnly(http2SamplerPanel.isCaptureFailuresOnlySelected());
+      http2Sampler.setCaptureStatusPattern(http2SamplerPanel.getCaptureStatusPattern());
+      http2Sampler.setCaptureMinTime(http2SamplerPanel.getCaptureMinTime());
+      http2Sampler.setRangeSegments(http2SamplerPanel.getRangeSegments());
+      http2Sampler.setDecodeResponseBody(http2SamplerPanel.isDecodeResponseBodySelected());
+      http2Sampler.setCaptureLimit(http2SamplerPanel.getCaptureLimit());
+      http2Sampler.setResponseDigestAlgorithm(http2SamplerPanel.getResponseDigestAlgorithm());
+      http2Sampler.setResponseFilePath(http2SamplerPanel.getResponseFilePath());
+      http2Sampler.setAbortAfterBytes(http2SamplerPanel.getAbortAfterBytes());
+      http2Sampler.setAbortAfterMillis(http2SamplerPanel.getAbortAfterMillis());
+      http2Sampler.setStreamingAssertionType(http2SamplerPanel.getStreamingAssertionType());
+      http2Sampler.setStreamingAssertionPattern(http2SamplerPanel.getStreamingAssertionPattern());
+      http2Sampler.setStreamingAssertionWindow(http2SamplerPanel.getStreamingAssertionWindow());
+      http2Sampler.setStreamingAssertionMinSize(http2SamplerPanel.getStreamingAssertionMinSize());
+      http2Sampler.setStreamingAssertionMaxSize(http2SamplerPanel.getStreamingAssertionMaxSize());
+      http2Sampler.setStreamingExtractorType(http2SamplerPanel.getStreamingExtractorType());
+      http2Sampler.setStreamingExtractorVariable(http2SamplerPanel.getStreamingExtractorVariable());
+      http2Sampler.setStreamingExtractorExpression(
+          http2SamplerPanel.getStreamingExtractorExpression());
+      http2Sampler.setStreamingExtractorRightBoundary(
+          http2SamplerPanel.getStreamingExtractorRightBoundary());
+      http2Sampler.setStreamingExtractorDefault(http2SamplerPanel.getStreamingExtractorDefault());
+      http2Sampler.setGeneratedBodyType(http2SamplerPanel.getGeneratedBodyType());
+      http2Sampler.setGeneratedBodyPattern(http2SamplerPanel.getGeneratedBodyPattern());
+      http2Sampler.setGeneratedBodySize(http2SamplerPanel.getGeneratedBodySize());
+      http2Sampler.setBinaryBodyFormat(http2SamplerPanel.getBinaryBodyFormat());
+      http2Sampler.setRequestCompression(http2SamplerPanel.getRequestCompression());
+      http2Sampler.setExpectContinueThreshold(http2SamplerPanel.getExpectContinueThreshold());
     }
   }
 
@@ -115,6 +144,47 @@ public class HTTP2SamplerGui extends AbstractSamplerGui {
       http2SamplerPanel.setProxyPass(http2Sampler.getPropertyAsString(HTTPSamplerBase.PROXYPASS));
       http2SamplerPanel.getUrlConfigGui().configure(http2Sampler);
       http2SamplerPanel.setHttp1UpgradeSelected(http2Sampler.isHttp1UpgradeEnabled());
+      http2SamplerPanel.setDiscardResponseBodySelected(http2Sampler.isDiscardResponseBody());
+      http2SamplerPanel.setCaptureFailuresOnlySelected(http2Sampler.isCaptureFailuresOnly());
+      http2SamplerPanel.setCaptureStatusPattern(http2Sampler.getCaptureStatusPattern());
+      http2SamplerPanel.setCaptureMinTime(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.CAPTURE_MIN_TIME_PROPERTY));
+      http2SamplerPanel.setRangeSegments(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.RANGE_SEGMENTS_PROPERTY));
+      http2SamplerPanel.setDecodeResponseBodySelected(http2Sampler.isDecodeResponseBody());
+      http2SamplerPanel.setCaptureLimit(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.CAPTURE_LIMIT_PROPERTY));
+      http2SamplerPanel.setResponseDigestAlgorithm(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.RESPONSE_DIGEST_PROPERTY));
+      http2SamplerPanel.setResponseFilePath(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.RESPONSE_FILE_PROPERTY));
+      http2SamplerPanel.setAbortAfterBytes(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.ABORT_AFTER_BYTES_PROPERTY));
+      http2SamplerPanel.setAbortAfterMillis(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.ABORT_AFTER_MILLIS_PROPERTY));
+      http2SamplerPanel.setStreamingAssertionType(http2Sampler.getStreamingAssertionType());
+      http2SamplerPanel.setStreamingAssertionPattern(http2Sampler.getStreamingAssertionPattern());
+      http2SamplerPanel.setStreamingAssertionWindow(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.STREAMING_ASSERTION_WINDOW_PROPERTY));
+      http2SamplerPanel.setStreamingAssertionMinSize(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.STREAMING_ASSERTION_MIN_SIZE_PROPERTY));
+      http2SamplerPanel.setStreamingAssertionMaxSize(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.STREAMING_ASSERTION_MAX_SIZE_PROPERTY));
+      http2SamplerPanel.setStreamingExtractorType(http2Sampler.getStreamingExtractorType());
+      http2SamplerPanel.setStreamingExtractorVariable(http2Sampler.getStreamingExtractorVariable());
+      http2SamplerPanel.setStreamingExtractorExpression(
+          http2Sampler.getStreamingExtractorExpression());
+      http2SamplerPanel.setStreamingExtractorRightBoundary(
+          http2Sampler.getStreamingExtractorRightBoundary());
+      http2SamplerPanel.setStreamingExtractorDefault(http2Sampler.getStreamingExtractorDefault());
+      http2SamplerPanel.setGeneratedBodyType(http2Sampler.getGeneratedBodyType());
+      http2SamplerPanel.setGeneratedBodyPattern(http2Sampler.getGeneratedBodyPattern());
+      http2SamplerPanel.setGeneratedBodySize(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.GENERATED_BODY_SIZE_PROPERTY));
+      http2SamplerPanel.setBinaryBodyFormat(http2Sampler.getBinaryBodyFormat());
+      http2SamplerPanel.setRequestCompression(http2Sampler.getRequestCompression());
+      http2SamplerPanel.setExpectContinueThreshold(
+          http2Sampler.getPropertyAsString(HTTP2Sampler.EXPECT_CONTINUE_THRESHOLD_PROPERTY));
     }
   }
 
@@ -7,6 +7,7 @@ import java.awt.Dimension;
 import java.util.Arrays;
 import javax.swing.BorderFactory;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JPasswordField;
@@ -38,6 +39,41 @@ public class HTTP2SamplerPanel extends JPanel {
   private final JLabeledTextField embeddedResourcesRegexField = new JLabeledTextField(
       JMeterUtils.getResString("web_testing_embedded_url_pattern"), 20);
   private final JCheckBox http1Upgrade = new JCheckBox("HTTP1 Upgrade");
+  private final JCheckBox discardResponseBodyCheckBox = new JCheckBox("Discard response body");
+  private final JCheckBox captureFailuresOnlyCheckBox = new JCheckBox(
+      "Keep response body and headers only for failures");
+  private final JTextField captureStatusPatternField = new JTextField(10);
+  private final JTextField captureMinTimeField = new JTextField(10);
+  private final JTextField rangeSegmentsField = new JTextField(10);
+  private final JCheckBox decodeResponseBodyCheckBox = new JCheckBox(
+      "Decode response body (gzip, deflate)");
+  private final JTextField captureLimitField = new JTextField(10);
+  private final JTextField responseFileField = new JTextField(20);
+  private final JTextField abortAfterBytesField = new JTextField(10);
+  private final JTextField abortAfterMillisField = new JTextField(10);
+  private final JComboBox<String> streamingAssertionTypeComboBox = new JComboBox<>(
+      new String[]{"", "SUBSTRING", "REGEX", "BYTES"});
+  private final JTextField streamingAssertionPatternField = new JTextField(20);
+  private final JTextField streamingAssertionWindowField = new JTextField(10);
+  private final JTextField streamingAssertionMinSizeField = new JTextField(10);
+  private final JTextField streamingAssertionMaxSizeField = new JTextField(10);
+  private final JComboBox<String> streamingExtractorTypeComboBox = new JComboBox<>(
+      new String[]{"", "JSON", "BOUNDARY", "REGEX"});
+  private final JTextField streamingExtractorVariableField = new JTextField(10);
+  private final JTextField streamingExtractorExpressionField = new JTextField(20);
+  private final JTextField streamingExtractorRightBoundaryField = new JTextField(10);
+  private final JTextField streamingExtractorDefaultField = new JTextField(10);
+  private final JComboBox<String> generatedBodyTypeComboBox = new JComboBox<>(
+      new String[]{"", "RANDOM", "TEMPLATE", "JSON_ARRAY"});
+  private final JTextField generatedBodyPatternField = new JTextField(20);
+  private final JTextField generatedBodySizeField = new JTextField(10);
+  private final JComboBox<String> binaryBodyFormatComboBox = new JComboBox<>(
+      new String[]{"", "BASE64", "HEX", "VARIABLE"});
+  private final JComboBox<String> requestCompressionComboBox = new JComboBox<>(
+      new String[]{"", "gzip", "deflate"});
+  private final JTextField expectContinueThresholdField = new JTextField(10);
+  private final JComboBox<String> responseDigestComboBox = new JComboBox<>(
+      new String[]{"", "MD5", "SHA-1", "SHA-256", "SHA-512"});
 
   public HTTP2SamplerPanel(boolean isSampler) {
     setLayout(new BorderLayout(0, 5));
@@ -93,6 +129,10 @@ public class HTTP2SamplerPanel extends JPanel {
     advancedPanel.add(createTimeOutPanel());
     advancedPanel.add(createProxyPanel());
     advancedPanel.add(createEmbeddedResourcesPanel());
+    advancedPanel.add(createResponseBodyPanel());
+    advancedPanel.add(createStreamingAssertionPanel());
+    advancedPanel.add(createStreamingExtractorPanel());
+    advancedPanel.add(createRequestBodyPanel());
     return advancedPanel;
   }
 
@@ -153,6 +193,127 @@ public class HTTP2SamplerPanel extends JPanel {
     return embeddedResourcesPanel;
   }
 
+  private JPanel createResponseBodyPanel() {
+    JPanel responseBodyPanel = new VerticalPanel();
+    responseBodyPanel.setBorder(BorderFactory
+        .createTitledBorder(BorderFactory.createEtchedBorder(), "Response body"));
+    discardResponseBodyCheckBox.addItemListener(e -> updateResponseBodyEnableStatus());
+    JPanel capturePanel = new HorizontalPanel();
+    capturePanel.add(decodeResponseBodyCheckBox);
+    capturePanel.add(discardResponseBodyCheckBox);
+    capturePanel.add(createPanelWithLabelForField(captureLimitField,
+        "Max bytes to capture (0 for all)"));
+    JLabel responseDigestLabel = new JLabel("Save response as hash");
+    responseDigestLabel.setLabelFor(responseDigestComboBox);
+    capturePanel.add(responseDigestLabel);
+    capturePanel.add(responseDigestComboBox);
+    responseBodyPanel.add(capturePanel);
+    responseBodyPanel.add(createPanelWithLabelForField(responseFileField,
+        "Save response to file"));
+    JPanel abortPanel = new HorizontalPanel();
+    abortPanel.add(createPanelWithLabelForField(abortAfterBytesField,
+        "Stop download after bytes (0 for headers only)"));
+    abortPanel.add(createPanelWithLabelForField(abortAfterMillisField,
+        "Stop download after (milliseconds)"));
+    responseBodyPanel.add(abortPanel);
+    captureFailuresOnlyCheckBox.setToolTipText("<html>Decided before assertions and "
+        + "post-processors run:<br>they get no body nor headers from samples successful for the "
+        + "sampler</html>");
+    captureFailuresOnlyCheckBox.addItemListener(e -> updateResponseBodyEnableStatus());
+    JPanel capturePolicyPanel = new HorizontalPanel();
+    capturePolicyPanel.add(captureFailuresOnlyCheckBox);
+    capturePolicyPanel.add(createPanelWithLabelForField(captureStatusPatternField,
+        "or response code matching"));
+    capturePolicyPanel.add(createPanelWithLabelForField(captureMinTimeField,
+        "or taking at least (milliseconds)"));
+    responseBodyPanel.add(capturePolicyPanel);
+    responseBodyPanel.add(createPanelWithLabelForField(rangeSegmentsField,
+        "Download in parallel ranges (segments)"));
+    return responseBodyPanel;
+  }
+
+  private JPanel createStreamingAssertionPanel() {
+    JPanel streamingAssertionPanel = new VerticalPanel();
+    streamingAssertionPanel.setBorder(BorderFactory
+        .createTitledBorder(BorderFactory.createEtchedBorder(), "Streaming assertion"));
+    JPanel patternPanel = new HorizontalPanel();
+    JLabel typeLabel = new JLabel("Response body contains");
+    typeLabel.setLabelFor(streamingAssertionTypeComboBox);
+    patternPanel.add(typeLabel);
+    patternPanel.add(streamingAssertionTypeComboBox);
+    patternPanel.add(streamingAssertionPatternField);
+    patternPanel.add(createPanelWithLabelForField(streamingAssertionWindowField,
+        "Regex window (bytes)"));
+    streamingAssertionPanel.add(patternPanel);
+    JPanel sizePanel = new HorizontalPanel();
+    sizePanel.add(createPanelWithLabelForField(streamingAssertionMinSizeField,
+        "Min body size (bytes)"));
+    sizePanel.add(createPanelWithLabelForField(streamingAssertionMaxSizeField,
+        "Max body size (bytes)"));
+    streamingAssertionPanel.add(sizePanel);
+    return streamingAssertionPanel;
+  }
+
+  private JPanel createStreamingExtractorPanel() {
+    JPanel streamingExtractorPanel = new VerticalPanel();
+    streamingExtractorPanel.setBorder(BorderFactory
+        .createTitledBorder(BorderFactory.createEtchedBorder(), "Streaming extractor"));
+    JPanel expressionPanel = new HorizontalPanel();
+    expressionPanel.add(createPanelWithLabelForField(streamingExtractorVariableField,
+        "Variable name"));
+    JLabel typeLabel = new JLabel("Extract with");
+    typeLabel.setLabelFor(streamingExtractorTypeComboBox);
+    expressionPanel.add(typeLabel);
+    expressionPanel.add(streamingExtractorTypeComboBox);
+    expressionPanel.add(createPanelWithLabelForField(streamingExtractorExpressionField,
+        "JSON path, regex or left boundary"));
+    streamingExtractorPanel.add(expressionPanel);
+    JPanel boundaryPanel = new HorizontalPanel();
+    boundaryPanel.add(createPanelWithLabelForField(streamingExtractorRightBoundaryField,
+        "Right boundary"));
+    boundaryPanel.add(createPanelWithLabelForField(streamingExtractorDefaultField,
+        "Default value"));
+    streamingExtractorPanel.add(boundaryPanel);
+    return streamingExtractorPanel;
+  }
+
+  private JPanel createRequestBodyPanel() {
+    JPanel requestBodyPanel = new VerticalPanel();
+    requestBodyPanel.setBorder(BorderFactory
+        .createTitledBorder(BorderFactory.createEtchedBorder(), "Request body"));
+    JPanel generatedBodyPanel = new HorizontalPanel();
+    JLabel typeLabel = new JLabel("Generate body");
+    typeLabel.setLabelFor(generatedBodyTypeComboBox);
+    generatedBodyPanel.add(typeLabel);
+    generatedBodyPanel.add(generatedBodyTypeComboBox);
+    generatedBodyPanel.add(createPanelWithLabelForField(generatedBodySizeField,
+        "Size (bytes, or records for JSON_ARRAY)"));
+    generatedBodyPanel.add(createPanelWithLabelForField(generatedBodyPatternField,
+        "Seed, template or JSON record"));
+    requestBodyPanel.add(generatedBodyPanel);
+    JPanel binaryBodyPanel = new HorizontalPanel();
+    JLabel binaryBodyLabel = new JLabel("Send raw body as binary from");
+    binaryBodyLabel.setLabelFor(binaryBodyFormatComboBox);
+    binaryBodyPanel.add(binaryBodyLabel);
+    binaryBodyPanel.add(binaryBodyFormatComboBox);
+    requestBodyPanel.add(binaryBodyPanel);
+    JPanel compressionPanel = new HorizontalPanel();
+    JLabel compressionLabel = new JLabel("Compress body (Content-Encoding)");
+    compressionLabel.setLabelFor(requestCompressionComboBox);
+    compressionPanel.add(compressionLabel);
+    compressionPanel.add(requestCompressionComboBox);
+    compressionPanel.add(createPanelWithLabelForField(expectContinueThresholdField,
+        "Expect 100-continue above (bytes)"));
+    requestBodyPanel.add(compressionPanel);
+    return requestBodyPanel;
+  }
+
+  private void updateResponseBodyEnableStatus() {
+    captureLimitField.setEnabled(!discardResponseBodyCheckBox.isSelected());
+    captureStatusPatternField.setEnabled(captureFailuresOnlyCheckBox.isSelected());
+    captureMinTimeField.setEnabled(captureFailuresOnlyCheckBox.isSelected());
+  }
+
   private void updateEnableStatus() {
     concurrentDownloadCheckBox.setEnabled(retrieveEmbeddedResourcesCheckBox.isSelected());
     embeddedResourcesRegexField.setEnabled(retrieveEmbeddedResourcesCheckBox.isSelected());
@@ -175,6 +336,34 @@ public class HTTP2SamplerPanel extends JPanel {
     proxyPortField.setText("");
     proxyUserField.setText("");
     proxyPassField.setText("");
+    discardResponseBodyCheckBox.setSelected(false);
+    captureFailuresOnlyCheckBox.setSelected(false);
+    captureStatusPatternField.setText("");
+    captureMinTimeField.setText("");
+    rangeSegmentsField.setText("");
+    decodeResponseBodyCheckBox.setSelected(false);
+    captureLimitField.setText("");
+    responseDigestComboBox.setSelectedItem("");
+    responseFileField.setText("");
+    abortAfterBytesField.setText("");
+    abortAfterMillisField.setText("");
+    streamingAssertionTypeComboBox.setSelectedItem("");
+    streamingAssertionPatternField.setText("");
+    streamingAssertionWindowField.setText("");
+    streamingAssertionMinSizeField.setText("");
+    streamingAssertionMaxSizeField.setText("");
+    streamingExtractorTypeComboBox.setSelectedItem("");
+    streamingExtractorVariableField.setText("");
+    streamingExtractorExpressionField.setText("");
+    streamingExtractorRightBoundaryField.setText("");
+    streamingExtractorDefaultField.setText("");
+    generatedBodyTypeComboBox.setSelectedItem("");
+    generatedBodyPatternField.setText("");
+    generatedBodySizeField.setText("");
+    binaryBodyFormatComboBox.setSelectedItem("");
+    requestCompressionComboBox.setSelectedItem("");
+    expectContinueThresholdField.setText("");
+    updateResponseBodyEnableStatus();
   }
 
   public UrlConfigGui getUrlConfigGui() {
@@ -189,6 +378,222 @@ public class HTTP2SamplerPanel extends JPanel {
     http1Upgrade.setSelected(enabled);
   }
 
+  public boolean isDiscardResponseBodySelected() {
+    return discardResponseBodyCheckBox.isSelected();
+  }
+
+  public void setDiscardResponseBodySelected(boolean selected) {
+    discardResponseBodyCheckBox.setSelected(selected);
+  }
+
+  public boolean isCaptureFailuresOnlySelected() {
+    return captureFailuresOnlyCheckBox.isSelected();
+  }
+
+  public void setCaptureFailuresOnlySelected(boolean selected) {
+    captureFailuresOnlyCheckBox.setSelected(selected);
+  }
+
+  public String getCaptureStatusPattern() {
+    return captureStatusPatternField.getText();
+  }
+
+  public void setCaptureStatusPattern(String statusPattern) {
+    captureStatusPatternField.setText(statusPattern);
+  }
+
+  public String getCaptureMinTime() {
+    return captureMinTimeField.getText();
+  }
+
+  public void setCaptureMinTime(String minTime) {
+    captureMinTimeField.setText(minTime);
+  }
+
+  public String getRangeSegments() {
+    return rangeSegmentsField.getText();
+  }
+
+  public void setRangeSegments(String segments) {
+    rangeSegmentsField.setText(segments);
+  }
+
+  public boolean isDecodeResponseBodySelected() {
+    return decodeResponseBodyCheckBox.isSelected();
+  }
+
+  public void setDecodeResponseBodySelected(boolean selected) {
+    decodeResponseBodyCheckBox.setSelected(selected);
+  }
+
+  public String getCaptureLimit() {
+    return captureLimitField.getText();
+  }
+
+  public void setCaptureLimit(String captureLimit) {
+    captureLimitField.setText(captureLimit);
+  }
+
+  public String getResponseDigestAlgorithm() {
+    return (String) responseDigestComboBox.getSelectedItem();
+  }
+
+  public void setResponseDigestAlgorithm(String algorithm) {
+    responseDigestComboBox.setSelectedItem(algorithm);
+  }
+
+  public String getResponseFilePath() {
+    return responseFileField.getText();
+  }
+
+  public void setResponseFilePath(String path) {
+    responseFileField.setText(path);
+  }
+
+  public String getAbortAfterBytes() {
+    return abortAfterBytesField.getText();
+  }
+
+  public void setAbortAfterBytes(String bytes) {
+    abortAfterBytesField.setText(bytes);
+  }
+
+  public String getAbortAfterMillis() {
+    return abortAfterMillisField.getText();
+  }
+
+  public void setAbortAfterMillis(String millis) {
+    abortAfterMillisField.setText(millis);
+  }
+
+  public String getStreamingAssertionType() {
+    return (String) streamingAssertionTypeComboBox.getSelectedItem();
+  }
+
+  public void setStreamingAssertionType(String type) {
+    streamingAssertionTypeComboBox.setSelectedItem(type);
+  }
+
+  public String getStreamingAssertionPattern() {
+    return streamingAssertionPatternField.getText();
+  }
+
+  public void setStreamingAssertionPattern(String pattern) {
+    streamingAssertionPatternField.setText(pattern);
+  }
+
+  public String getStreamingAssertionWindow() {
+    return streamingAssertionWindowField.getText();
+  }
+
+  public void setStreamingAssertionWindow(String window) {
+    streamingAssertionWindowField.setText(window);
+  }
+
+  public String getStreamingAssertionMinSize() {
+    return streamingAssertionMinSizeField.getText();
+  }
+
+  public void setStreamingAssertionMinSize(String minSize) {
+    streamingAssertionMinSizeField.setText(minSize);
+  }
+
+  public String getStreamingAssertionMaxSize() {
+    return streamingAssertionMaxSizeField.getText();
+  }
+
+  public void setStreamingAssertionMaxSize(String maxSize) {
+    streamingAssertionMaxSizeField.setText(maxSize);
+  }
+
+  public String getStreamingExtractorType() {
+    return (String) streamingExtractorTypeComboBox.getSelectedItem();
+  }
+
+  public void setStreamingExtractorType(String type) {
+    streamingExtractorTypeComboBox.setSelectedItem(type);
+  }
+
+  public String getStreamingExtractorVariable() {
+    return streamingExtractorVariableField.getText();
+  }
+
+  public void setStreamingExtractorVariable(String variable) {
+    streamingExtractorVariableField.setText(variable);
+  }
+
+  public String getStreamingExtractorExpression() {
+    return streamingExtractorExpressionField.getText();
+  }
+
+  public void setStreamingExtractorExpression(String expression) {
+    streamingExtractorExpressionField.setText(expression);
+  }
+
+  public String getStreamingExtractorRightBoundary() {
+    return streamingExtractorRightBoundaryField.getText();
+  }
+
+  public void setStreamingExtractorRightBoundary(String rightBoundary) {
+    streamingExtractorRightBoundaryField.setText(rightBoundary);
+  }
+
+  public String getStreamingExtractorDefault() {
+    return streamingExtractorDefaultField.getText();
+  }
+
+  public void setStreamingExtractorDefault(String defaultValue) {
+    streamingExtractorDefaultField.setText(defaultValue);
+  }
+
+  public String getGeneratedBodyType() {
+    return (String) generatedBodyTypeComboBox.getSelectedItem();
+  }
+
+  public void setGeneratedBodyType(String type) {
+    generatedBodyTypeComboBox.setSelectedItem(type);
+  }
+
+  public String getGeneratedBodyPattern() {
+    return generatedBodyPatternField.getText();
+  }
+
+  public void setGeneratedBodyPattern(String pattern) {
+    generatedBodyPatternField.setText(pattern);
+  }
+
+  public String getGeneratedBodySize() {
+    return generatedBodySizeField.getText();
+  }
+
+  public void setGeneratedBodySize(String size) {
+    generatedBodySizeField.setText(size);
+  }
+
+  public String getBinaryBodyFormat() {
+    return (String) binaryBodyFormatComboBox.getSelectedItem();
+  }
+
+  public void setBinaryBodyFormat(String format) {
+    binaryBodyFormatComboBox.setSelectedItem(format);
+  }
+
+  public String getRequestCompression() {
+    return (String) requestCompressionComboBox.getSelectedItem();
+  }
+
+  public void setRequestCompression(String compression) {
+    requestCompressionComboBox.setSelectedItem(compression);
+  }
+
+  public String getExpectContinueThreshold() {
+    return expectContinueThresholdField.getText();
+  }
+
+  public void setExpectContinueThreshold(String threshold) {
+    expectContinueThresholdField.setText(threshold);
+  }
+
   public String getConnectTimeOut() {
     return connectTimeOutField.getText();
   }
@@ -6,6 +6,8 @@ import static org.junit.Assert.assertThrows;
 import com.blazemeter.jmeter.http2.sampler.HTTP2Sampler;
 import com.blazemeter.jmeter.http2.sampler.JMeterTestUtils;
 import com.google.common.io.Resources;
+import com.sun.management.ThreadMXBean;
+import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -13,21 +15,39 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.SSLSession;
 import jodd.net.MimeTypes;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.protocol.http.control.AuthManager;
 import org.apache.jmeter.protocol.http.control.AuthManager.Mechanism;
@@ -41,7 +61,13 @@ import org.apache.jmeter.protocol.http.util.HTTPArgument;
 import org.apache.jmeter.protocol.http.util.HTTPConstants;
 import org.apache.jmeter.protocol.http.util.HTTPFileArg;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.util.JOrphanUtils;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
 import org.assertj.core.api.JUnitSoftAssertions;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpFields.Mutable;
@@ -49,6 +75,7 @@ import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.HttpStatus.Code;
 import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.io.ConnectionStatistics;
 import org.eclipse.jetty.security.Authenticator;
 import org.eclipse.jetty.security.ConstraintMapping;
 import org.eclipse.jetty.security.ConstraintSecurityHandler;
@@ -57,10 +84,12 @@ import org.eclipse.jetty.security.UserStore;
 import org.eclipse.jetty.security.authentication.BasicAuthenticator;
 import org.eclipse.jetty.security.authentication.DigestAuthenticator;
 import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -68,10 +97,12 @@ import org.eclipse.jetty.util.security.Constraint;
 import org.eclipse.jetty.util.security.Password;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -88,9 +119,17 @@ public class HTTP2JettyClientTest {
   private static final String RESPONSE_DATA_COOKIES = "testCookie=test";
   private static final String SERVER_PATH_200 = "/test/200";
   private static final String SERVER_PATH_SLOW = "/test/slow";
+  private static final String SERVER_PATH_SLOW_BODY = "/test/slow-body";
+  private static final String SERVER_PATH_DELAYED_BODY = "/test/delayed-body";
+  private static final String SERVER_PATH_TLS_SESSION = "/test/tls-session";
+  private static final String SERVER_PATH_CONCURRENT = "/test/concurrent";
   private static final String SERVER_PATH_200_GZIP = "/test/gzip";
+  private static final String SERVER_PATH_200_DEFLATE = "/test/deflate";
+  private static final String SERVER_PATH_200_JSON = "/test/json";
+  private static final String SERVER_PATH_200_RANGES = "/test/ranges";
   private static final String SERVER_PATH_200_EMBEDDED = "/test/embedded";
   private static final String SERVER_PATH_200_FILE_SENT = "/test/file";
+  private static final String SERVER_PATH_200_DECOMPRESSED = "/test/decompressed";
   private static final String SERVER_PATH_BIG_RESPONSE = "/test/big-response";
   private static final String SERVER_PATH_400 = "/test/400";
   private static final String SERVER_PATH_302 = "/test/302";
@@ -100,16 +139,39 @@ public class HTTP2JettyClientTest {
   private static final String TEST_ARGUMENT_2 = "valueTest2";
   private static final String BASIC_HTML_TEMPLATE = "<!DOCTYPE html><html><head><title>Page "
       + "Title</title></head><body><div><img src='image.png'></div></body></html>";
+  private static final String JSON_RESPONSE_BODY = "{\"page\": 1, \"items\": [{\"id\": \"a1\", "
+      + "\"tags\": [\"x\"]}, {\"id\": \"b\\u00e92\\n\", \"meta\": {\"size\": 10, \"ok\": true}}], "
+      + "\"token\": \"abc123\"}";
   private static final byte[] BINARY_RESPONSE_BODY = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+  private static final byte[] RANGES_RESPONSE_BODY = buildRangesResponseBody();
   private static final String AUTH_USERNAME = "username";
   private static final String AUTH_PASSWORD = "password";
   private static final String AUTH_REALM = "realm";
   private static final String KEYSTORE_PASSWORD = "storepwd";
   private static final int BIG_BUFFER_SIZE = 4 * 1024 * 1024;
+  private static final String MAX_BYTES_TO_STORE_PROPERTY =
+      "httpsampler.max_bytes_to_store_per_request";
+  private static final String PLUGIN_LOGGER = "com.blazemeter.jmeter.http2";
+  private static final String SSL_SESSION_ATTRIBUTE =
+      "org.eclipse.jetty.servlet.request.ssl_session";
+  private static final String CONNECTION_RESET_MODE_PROPERTY =
+      "httpJettyClient.newUserConnectionResetMode";
+  private static final int ALLOCATION_WARMUP_SAMPLES = 1000;
+  private static final int ALLOCATION_MEASURED_SAMPLES = 500;
+  // about 10.9 KiB are measured, while samples allocated about 12.9 KiB before reducing them
+  private static final long ALLOCATION_BUDGET_PER_SAMPLE = 12 * 1024;
+  private static final int CONCURRENT_REQUESTS = 8;
+  private static final int DEFAULT_MAX_HTTP1_CONNECTIONS = 6;
 
   @Rule
   public final JUnitSoftAssertions softly = new JUnitSoftAssertions();
+  @Rule
+  public final TemporaryFolder tempFolder = new TemporaryFolder();
   private ServerConnector connector;
+  private final CountDownLatch slowRequestReceived = new CountDownLatch(1);
+  private CountDownLatch concurrentRequestsReceived = new CountDownLatch(0);
+  private final CountDownLatch concurrentRequestsReleased = new CountDownLatch(1);
+  private final Set<Integer> concurrentRequestsPorts = ConcurrentHashMap.newKeySet();
   private HTTP2JettyClient client;
   private HTTP2Sampler sampler;
 
@@ -138,7 +200,8 @@ public class HTTP2JettyClientTest {
   public void teardown() throws Exception {
     client.stop();
     if (connector != null) {
-      connector.stop();
+      // stopping only the connector left the server threads (and their slow requests) running
+      connector.getServer().stop();
     }
   }
 
@@ -175,12 +238,21 @@ public class HTTP2JettyClientTest {
   }
 
   private Server buildServer(SslContextFactory.Server sslContextFactory) {
+    return buildServer(sslContextFactory, new HTTP2ServerConnectionFactory(buildHttpsConfig()));
+  }
+
+  private HttpConfiguration buildHttpsConfig() {
     HttpConfiguration httpsConfig = new HttpConfiguration();
     httpsConfig.addCustomizer(new SecureRequestCustomizer());
-    ConnectionFactory h2 = new HTTP2ServerConnectionFactory(httpsConfig);
-    ConnectionFactory ssl = new SslConnectionFactory(sslContextFactory, h2.getProtocol());
+    return httpsConfig;
+  }
+
+  private Server buildServer(SslContextFactory.Server sslContextFactory,
+      ConnectionFactory protocolFactory) {
+    ConnectionFactory ssl = new SslConnectionFactory(sslContextFactory,
+        protocolFactory.getProtocol());
     Server server = new Server();
-    connector = new ServerConnector(server, 1, 1, ssl, h2);
+    connector = new ServerConnector(server, 1, 1, ssl, protocolFactory);
     connector.setPort(SERVER_PORT);
     server.addConnector(connector);
     ServletContextHandler context = new ServletContextHandler(server, "/", true, false);
@@ -199,12 +271,59 @@ public class HTTP2JettyClientTest {
             resp.getWriter().write(SERVER_RESPONSE);
             break;
           case SERVER_PATH_SLOW:
+            slowRequestReceived.countDown();
+            try {
+              Thread.sleep(10000);
+            } catch (InterruptedException e) {
+              e.printStackTrace();
+            }
+            resp.setStatus(HttpStatus.OK_200);
+            break;
+          case SERVER_PATH_CONCURRENT:
+            concurrentRequestsPorts.add(req.getRemotePort());
+            concurrentRequestsReceived.countDown();
+            try {
+              concurrentRequestsReleased.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              e.printStackTrace();
+            }
+            resp.setStatus(HttpStatus.OK_200);
+            break;
+          case SERVER_PATH_200_JSON:
+            resp.setStatus(HttpStatus.OK_200);
+            resp.setContentType("application/json");
+            writeInChunks(JSON_RESPONSE_BODY.getBytes(StandardCharsets.UTF_8), 5, resp);
+            break;
+          case SERVER_PATH_200_RANGES:
+            writeRange(req.getHeader(HttpHeader.RANGE.asString()), resp);
+            break;
+          case SERVER_PATH_SLOW_BODY:
+            resp.setStatus(HttpStatus.OK_200);
+            resp.getOutputStream().write(new byte[1024]);
+            resp.flushBuffer();
             try {
               Thread.sleep(10000);
             } catch (InterruptedException e) {
               e.printStackTrace();
             }
+            resp.getOutputStream().write(new byte[1024]);
+            break;
+          case SERVER_PATH_DELAYED_BODY:
             resp.setStatus(HttpStatus.OK_200);
+            resp.getOutputStream().write(new byte[1024]);
+            resp.flushBuffer();
+            try {
+              Thread.sleep(1000);
+            } catch (InterruptedException e) {
+              e.printStackTrace();
+            }
+            resp.getOutputStream().write(new byte[1024]);
+            break;
+          case SERVER_PATH_TLS_SESSION:
+            resp.setStatus(HttpStatus.OK_200);
+            // resumed sessions keep the creation time of the session they resume
+            resp.getWriter().write(req.getRemotePort() + " "
+                + ((SSLSession) req.getAttribute(SSL_SESSION_ATTRIBUTE)).getCreationTime());
             break;
           case SERVER_PATH_400:
             resp.setStatus(HttpStatus.BAD_REQUEST_400);
@@ -239,12 +358,31 @@ public class HTTP2JettyClientTest {
             byte[] requestBody = req.getInputStream().readAllBytes();
             resp.getOutputStream().write(requestBody);
             break;
+          case SERVER_PATH_200_DECOMPRESSED:
+            String requestEncoding = req.getHeader(HttpHeader.CONTENT_ENCODING.asString());
+            InputStream requestInput = "gzip".equals(requestEncoding)
+                ? new GZIPInputStream(req.getInputStream())
+                : "deflate".equals(requestEncoding)
+                    ? new InflaterInputStream(req.getInputStream()) : req.getInputStream();
+            resp.getOutputStream().write(requestInput.readAllBytes());
+            break;
           case SERVER_PATH_200_GZIP:
             resp.addHeader("Content-Encoding", "gzip");
             GZIPOutputStream gzipOutputStream = new GZIPOutputStream(resp.getOutputStream());
             gzipOutputStream.write(HTTP2JettyClientTest.BINARY_RESPONSE_BODY);
             gzipOutputStream.close();
             break;
+          case SERVER_PATH_200_DEFLATE:
+            if (!req.getHeader(HttpHeader.ACCEPT_ENCODING.asString()).contains("deflate")) {
+              resp.setStatus(HttpStatus.NOT_ACCEPTABLE_406);
+              break;
+            }
+            resp.addHeader("Content-Encoding", "deflate");
+            DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(
+                resp.getOutputStream());
+            deflaterOutputStream.write(HTTP2JettyClientTest.BINARY_RESPONSE_BODY);
+            deflaterOutputStream.close();
+            break;
           case SERVER_PATH_DELETE_DATA:
             resp.setStatus(HttpStatus.OK_200);
             break;
@@ -257,6 +395,37 @@ public class HTTP2JettyClientTest {
     };
   }
 
+  private static byte[] buildRangesResponseBody() {
+    byte[] ret = new byte[10000];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = (byte) (i % 251);
+    }
+    return ret;
+  }
+
+  private static void writeRange(String range, HttpServletResponse resp) throws IOException {
+    if (range == null) {
+      resp.setStatus(HttpStatus.OK_200);
+      resp.getOutputStream().write(RANGES_RESPONSE_BODY);
+      return;
+    }
+    String[] limits = range.substring(range.indexOf('=') + 1).split("-");
+    int start = Integer.parseInt(limits[0]);
+    int end = Integer.parseInt(limits[1]);
+    resp.setStatus(HttpStatus.PARTIAL_CONTENT_206);
+    resp.setHeader(HttpHeader.CONTENT_RANGE.asString(),
+        "bytes " + start + "-" + end + "/" + RANGES_RESPONSE_BODY.length);
+    resp.getOutputStream().write(RANGES_RESPONSE_BODY, start, end - start + 1);
+  }
+
+  private static void writeInChunks(byte[] body, int chunkSize, HttpServletResponse resp)
+      throws IOException {
+    for (int i = 0; i < body.length; i += chunkSize) {
+      resp.getOutputStream().write(body, i, Math.min(chunkSize, body.length - i));
+      resp.flushBuffer();
+    }
+  }
+
   private HTTPSampleResult sampleWithGet() throws Exception {
     return sampleWithGet(SERVER_PATH_200);
   }
@@ -281,6 +450,155 @@ public class HTTP2JettyClientTest {
     return ret;
   }
 
+  @Test
+  public void shouldNotFlagHttp1FallbackWhenResponseIsOverHttp2() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    sampleWithGet();
+    softly.assertThat(variables.get(HTTP2JettyClient.PROTOCOL_VARIABLE)).isEqualTo("HTTP/2.0");
+    softly.assertThat(variables.get(HTTP2JettyClient.HTTP1_FALLBACK_VARIABLE)).isEqualTo("false");
+  }
+
+  private JMeterVariables buildJMeterVariables() {
+    JMeterVariables variables = new JMeterVariables();
+    JMeterContextService.getContext().setVariables(variables);
+    return variables;
+  }
+
+  @Test
+  public void shouldFlagHttp1FallbackWhenServerOnlySupportsHttp1() throws Exception {
+    buildServer(buildServerSslContextFactory(), new HttpConnectionFactory(buildHttpsConfig()))
+        .start();
+    JMeterVariables variables = buildJMeterVariables();
+    client.stop();
+    client = new HTTP2JettyClient(true);
+    client.start();
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(SERVER_RESPONSE);
+    softly.assertThat(variables.get(HTTP2JettyClient.PROTOCOL_VARIABLE)).isEqualTo("HTTP/1.1");
+    softly.assertThat(variables.get(HTTP2JettyClient.HTTP1_FALLBACK_VARIABLE)).isEqualTo("true");
+  }
+
+  @Test
+  public void shouldOpenNewConnectionWhenConnectionsAreClosed() throws Exception {
+    Server server = buildServer();
+    ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+    connector.addBean(connectionStatistics);
+    server.start();
+    sampleWithGet();
+    sampleWithGet();
+    long connectionsWithoutClose = connectionStatistics.getConnectionsTotal();
+    client.closeConnections(false);
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(SERVER_RESPONSE);
+    softly.assertThat(connectionStatistics.getConnectionsTotal())
+        .isEqualTo(connectionsWithoutClose * 2);
+  }
+
+  @Test
+  public void shouldUseMaxHttp1ConnectionsWhenConcurrentRequestsToHttp1OnlyServer()
+      throws Exception {
+    Server server = buildServer(buildServerSslContextFactory(),
+        new HttpConnectionFactory(buildHttpsConfig()));
+    client.stop();
+    client = new HTTP2JettyClient(true);
+    client.start();
+    assertThat(sampleConcurrentlyCountingConnections(server, DEFAULT_MAX_HTTP1_CONNECTIONS))
+        .isEqualTo(DEFAULT_MAX_HTTP1_CONNECTIONS);
+  }
+
+  /*
+   Requests are held by the server until the expected ones are in flight, so every HTTP/1.1
+   connection is busy and the rest of the requests have to wait for one of them to be released.
+   Connections are counted by client port, since server connection statistics also count the TLS
+   connection wrapping each HTTP one.
+   */
+  private int sampleConcurrentlyCountingConnections(Server server, int inFlightRequests)
+      throws Exception {
+    concurrentRequestsReceived = new CountDownLatch(inFlightRequests);
+    server.start();
+    ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+    try {
+      List<Future<HTTPSampleResult>> samples = new ArrayList<>();
+      for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+        samples.add(executor.submit(() -> sampleWithGet(SERVER_PATH_CONCURRENT)));
+      }
+      assertThat(concurrentRequestsReceived.await(5, TimeUnit.SECONDS)).isTrue();
+      concurrentRequestsReleased.countDown();
+      for (Future<HTTPSampleResult> sample : samples) {
+        softly.assertThat(sample.get(5, TimeUnit.SECONDS).getResponseCode())
+            .isEqualTo(String.valueOf(HttpStatus.OK_200));
+      }
+      return concurrentRequestsPorts.size();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldUseSingleConnectionWhenConcurrentRequestsToHttp2Server() throws Exception {
+    assertThat(sampleConcurrentlyCountingConnections(buildServer(), CONCURRENT_REQUESTS))
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void shouldResumeTlsSessionInNewConnectionWhenNewUserAndTlsResumptionMode()
+      throws Exception {
+    List<String[]> iterations = sampleTlsSessionOnNewUserIterations("TLS_RESUMPTION");
+    softly.assertThat(iterations.get(1)[0]).isNotEqualTo(iterations.get(0)[0]);
+    softly.assertThat(iterations.get(1)[1]).isEqualTo(iterations.get(0)[1]);
+  }
+
+  /*
+   Samples through a sampler, which builds its own clients, starting a new user iteration after each
+   sample. Each iteration provides the client port and TLS session creation time seen by the
+   server.
+   */
+  private List<String[]> sampleTlsSessionOnNewUserIterations(String resetMode) throws Exception {
+    buildStartedServer();
+    // new variables don't keep the same user on next iteration
+    buildJMeterVariables();
+    JMeterUtils.setProperty(CONNECTION_RESET_MODE_PROPERTY, resetMode);
+    HTTP2Sampler userSampler = new HTTP2Sampler();
+    try {
+      userSampler.setProtocol(HTTPConstants.PROTOCOL_HTTPS);
+      userSampler.setDomain(HOST_NAME);
+      userSampler.setPort(SERVER_PORT);
+      userSampler.setPath(SERVER_PATH_TLS_SESSION);
+      List<String[]> ret = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        ret.add(userSampler.sample().getResponseDataAsString().split(" "));
+        awaitTlsSessionTicket();
+        userSampler.iterationStart(null);
+      }
+      return ret;
+    } finally {
+      userSampler.threadFinished();
+      JMeterUtils.setProperty(CONNECTION_RESET_MODE_PROPERTY, "NONE");
+    }
+  }
+
+  private void awaitTlsSessionTicket() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (HTTP2Sampler.getThreadClients().stream().noneMatch(HTTP2JettyClient::hasTlsSessions)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void shouldUseNewTlsSessionWhenNewUserAndFullHandshakeMode() throws Exception {
+    List<String[]> iterations = sampleTlsSessionOnNewUserIterations("FULL_HANDSHAKE");
+    softly.assertThat(iterations.get(1)[0]).isNotEqualTo(iterations.get(0)[0]);
+    softly.assertThat(iterations.get(1)[1]).isNotEqualTo(iterations.get(0)[1]);
+  }
+
+  @Test
+  public void shouldReuseConnectionWhenNewUserAndNoneMode() throws Exception {
+    List<String[]> iterations = sampleTlsSessionOnNewUserIterations("NONE");
+    softly.assertThat(iterations.get(1)).isEqualTo(iterations.get(0));
+  }
+
   @Test
   public void shouldThrowConnectExceptionWhenServerIsInaccessible() {
     try {
@@ -367,6 +685,34 @@ public class HTTP2JettyClientTest {
     validateResponse(sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST), expected);
   }
 
+  @Test
+  public void shouldSendUpdatedBodyWhenArgumentsChangeBetweenSamples() throws Exception {
+    buildStartedServer();
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.addArgument("test1", TEST_ARGUMENT_1);
+    sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST);
+    sampler.getArguments().removeAllArguments();
+    sampler.addArgument("test1", TEST_ARGUMENT_2);
+    HTTPSampleResult expected = buildOkResult("test1=" + TEST_ARGUMENT_2,
+        "application/x-www-form-urlencoded");
+    validateResponse(sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST), expected);
+  }
+
+  @Test
+  public void shouldSendUpdatedHeadersWhenHeadersChangeBetweenSamples() throws Exception {
+    buildStartedServer();
+    HeaderManager hm = new HeaderManager();
+    Header header = new Header("Header1", "value1");
+    hm.add(header);
+    sampler.setHeaderManager(hm);
+    sampleWithGet();
+    header.setValue("value2");
+    HTTPSampleResult expected = buildResult(true, Code.OK,
+        HttpFields.build().add("Header1", "value2"), null, null);
+    expected.setResponseData(SERVER_RESPONSE, StandardCharsets.UTF_8.name());
+    validateResponse(sampleWithGet(), expected);
+  }
+
   @Test
   public void shouldSendArgumentsInUrlWhenDeleteMethodWithArguments() throws Exception {
     sampler.setMethod(HTTPConstants.DELETE);
@@ -492,6 +838,56 @@ public class HTTP2JettyClientTest {
     validateResponse(sampleWithGet(), buildOkResultWithResponse(SERVER_RESPONSE));
   }
 
+  @Test
+  public void shouldAuthenticatePreemptivelyWhenDigestAuthAlreadyChallenged() throws Exception {
+    Server server = buildServer();
+    configureDigestAuth(server);
+    AtomicInteger requests = countRequests(server);
+    server.start();
+    configureAuthManager(Mechanism.DIGEST);
+    ((Authorization) sampler.getAuthManager().getAuthObjects().get(0).getObjectValue())
+        .setURL(createURL(SERVER_PATH).toString());
+    sampleWithGet();
+    softly.assertThat(requests.get()).isEqualTo(2);
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_JSON);
+    softly.assertThat(result.getResponseCode()).isEqualTo(String.valueOf(HttpStatus.OK_200));
+    softly.assertThat(result.getRequestHeaders()).contains("nc=\"00000002\"");
+    softly.assertThat(requests.get()).isEqualTo(3);
+  }
+
+  private AtomicInteger countRequests(Server server) {
+    AtomicInteger ret = new AtomicInteger();
+    HandlerWrapper counter = new HandlerWrapper() {
+      @Override
+      public void handle(String target, org.eclipse.jetty.server.Request baseRequest,
+          HttpServletRequest request, HttpServletResponse response)
+          throws IOException, ServletException {
+        ret.incrementAndGet();
+        super.handle(target, baseRequest, request, response);
+      }
+    };
+    counter.setHandler(server.getHandler());
+    server.setHandler(counter);
+    return ret;
+  }
+
+  @Test
+  public void shouldUseUpdatedCredentialsWhenAuthManagerChangesBetweenSamples()
+      throws Exception {
+    Server server = buildServer();
+    configureBasicAuth(server);
+    server.start();
+    configureAuthManager(Mechanism.BASIC);
+    Authorization auth = (Authorization) sampler.getAuthManager().getAuthObjects().get(0)
+        .getObjectValue();
+    auth.setPass("wrong");
+    softly.assertThat(sampleWithGet().getResponseCode())
+        .isEqualTo(String.valueOf(HttpStatus.UNAUTHORIZED_401));
+    auth.setPass(AUTH_PASSWORD);
+    softly.assertThat(sampleWithGet().getResponseCode())
+        .isEqualTo(String.valueOf(HttpStatus.OK_200));
+  }
+
   private void configureDigestAuth(Server server) {
     configureAuthHandler(server, new DigestAuthenticator(), Constraint.__DIGEST_AUTH);
   }
@@ -625,6 +1021,232 @@ public class HTTP2JettyClientTest {
     validateResponse(result, expected);
   }
 
+  @Test
+  public void shouldSendUpdatedFileContentWhenCachedUploadFileIsModified() throws Exception {
+    buildStartedServer();
+    File file = tempFolder.newFile("upload.txt");
+    Files.write(file.toPath(), TEST_ARGUMENT_1.getBytes(StandardCharsets.UTF_8));
+    sampler.setHTTPFiles(new HTTPFileArg[] {new HTTPFileArg(file.getPath(), "", "text/plain")});
+    HTTP2JettyClient.clearUploadFileCache();
+    try {
+      HTTPSampleResult result = sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST);
+      softly.assertThat(result.getResponseDataAsString()).isEqualTo(TEST_ARGUMENT_1);
+      softly.assertThat(HTTP2JettyClient.UPLOAD_FILE_CACHE.getSize())
+          .isEqualTo(TEST_ARGUMENT_1.length());
+      Files.write(file.toPath(), TEST_ARGUMENT_2.getBytes(StandardCharsets.UTF_8));
+      file.setLastModified(file.lastModified() + 1000);
+      result = sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST);
+      softly.assertThat(result.getResponseDataAsString()).isEqualTo(TEST_ARGUMENT_2);
+    } finally {
+      HTTP2JettyClient.clearUploadFileCache();
+    }
+  }
+
+  @Test
+  public void shouldSendRepeatedTemplateWhenGeneratedTemplateBody() throws Exception {
+    buildStartedServer();
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.setGeneratedBodyType("TEMPLATE");
+    sampler.setGeneratedBodyPattern("abc");
+    sampler.setGeneratedBodySize("10");
+    HTTPSampleResult result = sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo("abcabcabca");
+    softly.assertThat(result.getSentBytes()).isEqualTo(10);
+  }
+
+  @Test
+  public void shouldSendJsonArrayWhenGeneratedJsonArrayBody() throws Exception {
+    buildStartedServer();
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.setGeneratedBodyType("JSON_ARRAY");
+    sampler.setGeneratedBodyPattern("{\"a\":1}");
+    sampler.setGeneratedBodySize("3");
+    HTTPSampleResult result = sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString())
+        .isEqualTo("[{\"a\":1},{\"a\":1},{\"a\":1}]");
+  }
+
+  @Test
+  public void shouldSendSameBytesWhenGeneratedRandomBodyWithSameSeed() throws Exception {
+    buildStartedServer();
+    int size = 3 * 1024 * 1024;
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.setGeneratedBodyType("RANDOM");
+    sampler.setGeneratedBodyPattern("42");
+    sampler.setGeneratedBodySize(String.valueOf(size));
+    HTTPSampleResult first = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    HTTPSampleResult second = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    softly.assertThat(first.getSentBytes()).isEqualTo(size);
+    softly.assertThat(first.getResponseData()).hasSize(size);
+    softly.assertThat(first.getResponseData()).isEqualTo(second.getResponseData());
+  }
+
+  @Test
+  public void shouldSendGzipCompressedBodyWhenRequestCompressionGzip() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    String body = String.join("", Collections.nCopies(100, TEST_ARGUMENT_1));
+    sampler.addArgument("", body);
+    sampler.setRequestCompression("gzip");
+    HTTPSampleResult result = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(body);
+    softly.assertThat(result.getRequestHeaders()).contains("Content-Encoding: gzip");
+    softly.assertThat(result.getSentBytes()).isLessThan(body.length());
+    softly.assertThat(variables.get(HTTP2JettyClient.RAW_REQUEST_BODY_SIZE_VARIABLE))
+        .isEqualTo(String.valueOf(body.length()));
+  }
+
+  @Test
+  public void shouldSendUpdatedCompressedBodyWhenArgumentsChangeBetweenSamples()
+      throws Exception {
+    buildStartedServer();
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.setRequestCompression("deflate");
+    sampler.addArgument("test1", TEST_ARGUMENT_1);
+    HTTPSampleResult result = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo("test1=" + TEST_ARGUMENT_1);
+    sampler.getArguments().removeAllArguments();
+    sampler.addArgument("test1", TEST_ARGUMENT_2);
+    result = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo("test1=" + TEST_ARGUMENT_2);
+  }
+
+  @Test
+  public void shouldSendCompressedGeneratedBodyWhenRequestCompressionGzip() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    int size = 1024 * 1024;
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.setGeneratedBodyType("TEMPLATE");
+    sampler.setGeneratedBodyPattern("abc");
+    sampler.setGeneratedBodySize(String.valueOf(size));
+    sampler.setRequestCompression("gzip");
+    HTTPSampleResult result = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    byte[] expected = new byte[size];
+    for (int i = 0; i < size; i++) {
+      expected[i] = (byte) "abc".charAt(i % 3);
+    }
+    softly.assertThat(result.getResponseData()).isEqualTo(expected);
+    softly.assertThat(result.getSentBytes()).isLessThan(size / 10);
+    softly.assertThat(variables.get(HTTP2JettyClient.RAW_REQUEST_BODY_SIZE_VARIABLE))
+        .isEqualTo(String.valueOf(size));
+  }
+
+  @Test
+  public void shouldSendBodyAfterContinueWhenBodyAboveExpectContinueThreshold()
+      throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    sampler.addArgument("", TEST_ARGUMENT_1);
+    sampler.setExpectContinueThreshold("5");
+    HTTPSampleResult result = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(TEST_ARGUMENT_1);
+    softly.assertThat(result.getRequestHeaders()).contains("Expect: 100-continue");
+    softly.assertThat(variables.get(HTTP2JettyClient.CONTINUE_WAIT_TIME_VARIABLE)).isNotNull();
+  }
+
+  @Test
+  public void shouldNotSendBodyWhenServerRejectsExpectContinue() throws Exception {
+    buildStartedServer();
+    sampler.addArgument("", TEST_ARGUMENT_1);
+    sampler.setExpectContinueThreshold("0");
+    HTTPSampleResult result = sample(SERVER_PATH_400, HTTPConstants.POST);
+    softly.assertThat(result.getResponseCode())
+        .isEqualTo(String.valueOf(HttpStatus.BAD_REQUEST_400));
+    softly.assertThat(result.getSentBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldNotExpectContinueWhenBodyBelowThreshold() throws Exception {
+    buildStartedServer();
+    sampler.addArgument("", TEST_ARGUMENT_1);
+    sampler.setExpectContinueThreshold("1024");
+    HTTPSampleResult result = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    softly.assertThat(result.getRequestHeaders()).doesNotContain("Expect");
+  }
+
+  @Test
+  public void shouldNotExpectContinueWhenCompressedGeneratedBodyBelowThreshold()
+      throws Exception {
+    buildStartedServer();
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.setGeneratedBodyType("TEMPLATE");
+    sampler.setGeneratedBodyPattern("abc");
+    sampler.setGeneratedBodySize("10");
+    sampler.setRequestCompression("gzip");
+    sampler.setExpectContinueThreshold("1024");
+    HTTPSampleResult result = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo("abcabcabca");
+    softly.assertThat(result.getRequestHeaders()).doesNotContain("Expect");
+  }
+
+  @Test
+  public void shouldExpectContinueWhenCompressedStaticBodyBelowAndRawBodyAboveThreshold()
+      throws Exception {
+    buildStartedServer();
+    String body = StringUtils.repeat('a', 100);
+    sampler.addArgument("", body);
+    sampler.setRequestCompression("gzip");
+    sampler.setExpectContinueThreshold("50");
+    HTTPSampleResult result = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(body);
+    softly.assertThat(result.getSentBytes()).isLessThan(50);
+    softly.assertThat(result.getRequestHeaders()).contains("Expect: 100-continue");
+  }
+
+  @Test
+  public void shouldSendDecodedBytesWhenBinaryBodyBase64() throws Exception {
+    buildStartedServer();
+    sampler.addArgument("", Base64.getEncoder().encodeToString(BINARY_RESPONSE_BODY));
+    sampler.setBinaryBodyFormat("BASE64");
+    HTTPSampleResult first = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    HTTPSampleResult second = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    softly.assertThat(first.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+    softly.assertThat(second.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+    softly.assertThat(second.getSentBytes()).isEqualTo(BINARY_RESPONSE_BODY.length);
+  }
+
+  @Test
+  public void shouldReuseCompressedBodyWhenBinaryBodyBase64AndRequestCompression()
+      throws Exception {
+    buildStartedServer();
+    String text = Base64.getEncoder().encodeToString(BINARY_RESPONSE_BODY);
+    sampler.addArgument("", text);
+    sampler.setBinaryBodyFormat("BASE64");
+    sampler.setRequestCompression("gzip");
+    HTTPSampleResult first = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    RequestPlan plan = sampler.getRequestPlan();
+    byte[] compressed = plan.getCompressedBody("gzip", plan.findBinaryBody("BASE64", text));
+    HTTPSampleResult second = sample(SERVER_PATH_200_DECOMPRESSED, HTTPConstants.POST);
+    softly.assertThat(first.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+    softly.assertThat(second.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+    softly.assertThat(second.getRequestHeaders()).contains("Content-Encoding: gzip");
+    // static bodies are compressed up front, so their length is known
+    softly.assertThat(second.getRequestHeaders()).contains("Content-Length: " + compressed.length);
+    softly.assertThat(plan.getCompressedBody("gzip", plan.findBinaryBody("BASE64", text)))
+        .isSameAs(compressed);
+  }
+
+  @Test
+  public void shouldSendDecodedBytesWhenBinaryBodyHex() throws Exception {
+    buildStartedServer();
+    sampler.addArgument("", "00 01 02 03 04\n05 06 07 08 09");
+    sampler.setBinaryBodyFormat("HEX");
+    HTTPSampleResult result = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    softly.assertThat(result.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+  }
+
+  @Test
+  public void shouldSendVariableBytesWhenBinaryBodyVariable() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    variables.putObject("payload", BINARY_RESPONSE_BODY);
+    sampler.addArgument("", "payload");
+    sampler.setBinaryBodyFormat("VARIABLE");
+    HTTPSampleResult result = sample(SERVER_PATH_200_FILE_SENT, HTTPConstants.POST);
+    softly.assertThat(result.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+  }
+
   @Test(expected = TimeoutException.class)
   public void shouldThrowTimeoutExceptionWhenResponseBiggerThanTimeout() throws Exception {
     buildStartedServer();
@@ -633,6 +1255,24 @@ public class HTTP2JettyClientTest {
     sampleWithGet(SERVER_PATH_SLOW);
   }
 
+  @Test
+  public void shouldFailFastWhenRequestInProgressIsAborted() throws Exception {
+    buildStartedServer();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<HTTPSampleResult> sample = executor.submit(() -> sampleWithGet(SERVER_PATH_SLOW));
+      assertThat(slowRequestReceived.await(5, TimeUnit.SECONDS)).isTrue();
+      long abortStart = System.currentTimeMillis();
+      softly.assertThat(client.abortRequests(new InterruptedIOException())).isTrue();
+      ExecutionException exception = assertThrows(ExecutionException.class,
+          () -> sample.get(5, TimeUnit.SECONDS));
+      softly.assertThat(exception.getCause()).isInstanceOf(ExecutionException.class);
+      softly.assertThat(System.currentTimeMillis() - abortStart).isLessThan(5000);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void shouldNoUseCacheWhenNotUseExpire() throws Exception {
     buildStartedServer();
@@ -944,4 +1584,518 @@ public class HTTP2JettyClientTest {
     sampleWithGet(SERVER_PATH_BIG_RESPONSE);
   }
 
+  @Test
+  public void shouldGetBodySizeWithoutResponseDataWhenResponseBodyIsDiscarded() throws Exception {
+    buildStartedServer();
+    JMeterUtils.setProperty("httpJettyClient.maxBufferSize", String.valueOf(BIG_BUFFER_SIZE - 1));
+    sampler.setDiscardResponseBody(true);
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_BIG_RESPONSE);
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getResponseData()).isEmpty();
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(BIG_BUFFER_SIZE);
+  }
+
+  @Test
+  public void shouldStoreResponseContentWithoutCopyingWhenBelowMaxBytesToStore() {
+    byte[] content = SERVER_RESPONSE.getBytes(StandardCharsets.UTF_8);
+    assertThat(client.buildResponseData(content)).isSameAs(content);
+  }
+
+  @Test
+  public void shouldTruncateResponseDataWhenAboveMaxBytesToStore() throws Exception {
+    buildStartedServer();
+    JMeterUtils.setProperty(MAX_BYTES_TO_STORE_PROPERTY, "5");
+    try {
+      HTTPSampleResult result = sampleWithGet(SERVER_PATH_200);
+      softly.assertThat(result.getResponseDataAsString())
+          .isEqualTo(SERVER_RESPONSE.substring(0, 5));
+    } finally {
+      JMeterUtils.setProperty(MAX_BYTES_TO_STORE_PROPERTY, "0");
+    }
+  }
+
+  @Test
+  public void shouldKeepFirstBytesOfBodyWhenResponseIsBiggerThanCaptureLimit() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    JMeterUtils.setProperty("httpJettyClient.maxBufferSize", String.valueOf(BIG_BUFFER_SIZE - 1));
+    sampler.setCaptureLimit("1024");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_BIG_RESPONSE);
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getResponseData()).hasSize(1024);
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(BIG_BUFFER_SIZE);
+    softly.assertThat(variables.get(HTTP2JettyClient.TRUNCATED_VARIABLE)).isEqualTo("true");
+  }
+
+  @Test
+  public void shouldKeepWholeBodyWhenResponseIsSmallerThanCaptureLimit() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    sampler.setCaptureLimit("1024");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(SERVER_RESPONSE);
+    softly.assertThat(variables.get(HTTP2JettyClient.TRUNCATED_VARIABLE)).isEqualTo("false");
+  }
+
+  @Test
+  public void shouldGetHashOfBodyWhenResponseDigestAlgorithmIsSet() throws Exception {
+    buildStartedServer();
+    JMeterUtils.setProperty("httpJettyClient.maxBufferSize", String.valueOf(BIG_BUFFER_SIZE - 1));
+    sampler.setResponseDigestAlgorithm("SHA-256");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_BIG_RESPONSE);
+    softly.assertThat(result.getResponseDataAsString())
+        .isEqualTo(buildHexDigest("SHA-256", new byte[BIG_BUFFER_SIZE]));
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(BIG_BUFFER_SIZE);
+  }
+
+  private String buildHexDigest(String algorithm, byte[] content)
+      throws NoSuchAlgorithmException {
+    return JOrphanUtils.baToHexString(MessageDigest.getInstance(algorithm).digest(content));
+  }
+
+  @Test
+  public void shouldGetMd5OfBodyWhenSaveResponseAsMd5IsEnabled() throws Exception {
+    buildStartedServer();
+    sampler.setMD5(true);
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.getResponseDataAsString())
+        .isEqualTo(buildHexDigest("MD5", SERVER_RESPONSE.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void shouldWriteBodyToFileWhenResponseFileIsSet() throws Exception {
+    buildStartedServer();
+    JMeterUtils.setProperty("httpJettyClient.maxBufferSize", String.valueOf(BIG_BUFFER_SIZE - 1));
+    File responseFile = tempFolder.newFile();
+    sampler.setResponseFilePath(responseFile.getPath());
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_BIG_RESPONSE);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(responseFile.getPath());
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(BIG_BUFFER_SIZE);
+    softly.assertThat(Files.readAllBytes(responseFile.toPath()))
+        .isEqualTo(new byte[BIG_BUFFER_SIZE]);
+  }
+
+  @Test
+  public void shouldWriteOnlyMainSampleToFileWhenResponseFileIsSetAndEmbeddedResourcesAreSampled()
+      throws Exception {
+    buildStartedServer();
+    sampler.setImageParser(true);
+    File responseFile = tempFolder.newFile();
+    sampler.setResponseFilePath(responseFile.getPath());
+    client.loadProperties();
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_EMBEDDED);
+    // embedded resources are sampled with a greater depth than the main sample
+    HTTPSampleResult embedded = client.sample(sampler,
+        buildBaseResult(createURL(SERVER_IMAGE), HTTPConstants.GET), false, 1);
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(responseFile.getPath());
+    softly.assertThat(embedded.getResponseData()).isEqualTo(new byte[]{1, 2, 3, 4, 5});
+    softly.assertThat(new String(Files.readAllBytes(responseFile.toPath()),
+        StandardCharsets.UTF_8)).isEqualTo(BASIC_HTML_TEMPLATE);
+  }
+
+  @Test
+  public void shouldSetDigestVariableWhenResponseFileAndDigestAlgorithmAreSet() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    sampler.setResponseFilePath(tempFolder.newFile().getPath());
+    sampler.setResponseDigestAlgorithm("MD5");
+    sampleWithGet();
+    softly.assertThat(variables.get(HTTP2JettyClient.RESPONSE_DIGEST_VARIABLE))
+        .isEqualTo(buildHexDigest("MD5", SERVER_RESPONSE.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void shouldGetSuccessResultWithoutBodyWhenAbortAfterHeaders() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    sampler.setAbortAfterBytes("0");
+    long start = System.currentTimeMillis();
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_SLOW_BODY);
+    softly.assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getResponseCode()).isEqualTo("200");
+    softly.assertThat(result.getBodySizeAsLong()).isZero();
+    softly.assertThat(variables.get(HTTP2JettyClient.TRUNCATED_VARIABLE)).isEqualTo("true");
+  }
+
+  @Test
+  public void shouldGetLatencyUntilFirstResponseByteWhenBodyIsDelayed() throws Exception {
+    buildStartedServer();
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_DELAYED_BODY);
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(2048);
+    softly.assertThat(result.getTime()).isGreaterThanOrEqualTo(1000);
+    softly.assertThat(result.getLatency()).isLessThan(1000);
+  }
+
+  @Test
+  public void shouldGetPartialBodyWhenAbortAfterBytes() throws Exception {
+    buildStartedServer();
+    sampler.setAbortAfterBytes("100");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_BIG_RESPONSE);
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getBodySizeAsLong()).isBetween(100L, BIG_BUFFER_SIZE - 1L);
+  }
+
+  @Test
+  public void shouldGetPartialBodyWhenAbortAfterMillis() throws Exception {
+    buildStartedServer();
+    sampler.setAbortAfterMillis("500");
+    long start = System.currentTimeMillis();
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_SLOW_BODY);
+    softly.assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(1024);
+  }
+
+  @Test
+  public void shouldGetDecodedBodyWhenDecodeResponseBodyAndResponseIsGzipped() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    sampler.setDecodeResponseBody(true);
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_GZIP);
+    softly.assertThat(result.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+    softly.assertThat(result.getBodySizeAsLong()).isGreaterThan(BINARY_RESPONSE_BODY.length);
+    softly.assertThat(variables.get(HTTP2JettyClient.DECODED_BODY_SIZE_VARIABLE))
+        .isEqualTo(String.valueOf(BINARY_RESPONSE_BODY.length));
+  }
+
+  @Test
+  public void shouldGetDecodedBodyWhenDecodeResponseBodyAndResponseIsDeflated() throws Exception {
+    buildStartedServer();
+    sampler.setDecodeResponseBody(true);
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_DEFLATE);
+    softly.assertThat(result.getResponseData()).isEqualTo(BINARY_RESPONSE_BODY);
+  }
+
+  @Test
+  public void shouldGetSuccessResultWhenStreamingAssertionSubstringMatchesDiscardedBody()
+      throws Exception {
+    buildStartedServer();
+    sampler.setDiscardResponseBody(true);
+    sampler.setStreamingAssertionType("SUBSTRING");
+    sampler.setStreamingAssertionPattern("World");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getAssertionResults()).hasSize(1);
+    softly.assertThat(result.getAssertionResults()[0].isFailure()).isFalse();
+  }
+
+  @Test
+  public void shouldGetFailureResultWhenStreamingAssertionSubstringIsMissing() throws Exception {
+    buildStartedServer();
+    sampler.setStreamingAssertionType("SUBSTRING");
+    sampler.setStreamingAssertionPattern("Bye");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.isSuccessful()).isFalse();
+    softly.assertThat(result.getAssertionResults()[0].getFailureMessage())
+        .isEqualTo("Response body does not contain Bye");
+  }
+
+  @Test
+  public void shouldGetSuccessResultWhenStreamingAssertionRegexMatches() throws Exception {
+    buildStartedServer();
+    sampler.setStreamingAssertionType("REGEX");
+    sampler.setStreamingAssertionPattern("Hel+o\\s+W");
+    sampler.setStreamingAssertionWindow("7");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.isSuccessful()).isTrue();
+  }
+
+  @Test
+  public void shouldGetSuccessResultWhenStreamingAssertionBytesMatches() throws Exception {
+    buildStartedServer();
+    sampler.setStreamingAssertionType("BYTES");
+    sampler.setStreamingAssertionPattern("03 04 05");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_GZIP);
+    softly.assertThat(result.isSuccessful()).isFalse();
+    sampler.setDecodeResponseBody(true);
+    result = sampleWithGet(SERVER_PATH_200_GZIP);
+    softly.assertThat(result.isSuccessful()).isTrue();
+  }
+
+  @Test
+  public void shouldGetSuccessResultWhenStreamingAssertionSubstringSpansChunks()
+      throws Exception {
+    buildStartedServer();
+    sampler.setStreamingAssertionType("SUBSTRING");
+    // the JSON body is sent in chunks of 5 bytes, so "items" is split between two of them
+    sampler.setStreamingAssertionPattern("\"items\"");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_JSON);
+    softly.assertThat(result.isSuccessful()).isTrue();
+  }
+
+  @Test
+  public void shouldGetSuccessResultWhenStreamingAssertionBytesSpanChunks() throws Exception {
+    buildStartedServer();
+    sampler.setStreamingAssertionType("BYTES");
+    // "items" in hexadecimal, split between two chunks of the JSON body
+    sampler.setStreamingAssertionPattern("22 69 74 65 6d 73 22");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_JSON);
+    softly.assertThat(result.isSuccessful()).isTrue();
+  }
+
+  @Test
+  public void shouldGetFailureResultWhenStreamingAssertionMaxSizeIsExceeded() throws Exception {
+    buildStartedServer();
+    sampler.setDiscardResponseBody(true);
+    sampler.setStreamingAssertionMaxSize(String.valueOf(BIG_BUFFER_SIZE - 1));
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_BIG_RESPONSE);
+    softly.assertThat(result.isSuccessful()).isFalse();
+    softly.assertThat(result.getAssertionResults()[0].getFailureMessage())
+        .isEqualTo("Response body size " + BIG_BUFFER_SIZE + " is bigger than "
+            + (BIG_BUFFER_SIZE - 1));
+  }
+
+  @Test
+  public void shouldSetVariableWithJsonValueWhenStreamingExtractorMatchesPath() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    sampler.setDiscardResponseBody(true);
+    setupStreamingExtractor("JSON", "$.items[1].id");
+    sampleWithGet(SERVER_PATH_200_JSON);
+    assertThat(variables.get("extracted")).isEqualTo("b\u00e92\n");
+  }
+
+  @Test
+  public void shouldSetVariableWithJsonObjectWhenStreamingExtractorMatchesObject()
+      throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    setupStreamingExtractor("JSON", "$['items'][1].meta");
+    sampleWithGet(SERVER_PATH_200_JSON);
+    assertThat(variables.get("extracted")).isEqualTo("{\"size\":10,\"ok\":true}");
+  }
+
+  @Test
+  public void shouldSetVariableWithJsonNumberWhenStreamingExtractorMatchesNumber()
+      throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    setupStreamingExtractor("JSON", "$.items[1].meta.size");
+    sampleWithGet(SERVER_PATH_200_JSON);
+    assertThat(variables.get("extracted")).isEqualTo("10");
+  }
+
+  @Test
+  public void shouldSetDefaultValueWhenStreamingExtractorDoesNotMatch() throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    setupStreamingExtractor("JSON", "$.items[2].id");
+    sampler.setStreamingExtractorDefault("NOT_FOUND");
+    sampleWithGet(SERVER_PATH_200_JSON);
+    assertThat(variables.get("extracted")).isEqualTo("NOT_FOUND");
+  }
+
+  @Test
+  public void shouldSetVariableWithBoundaryValueWhenStreamingExtractorMatchesBoundaries()
+      throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    setupStreamingExtractor("BOUNDARY", "\"token\": \"");
+    sampler.setStreamingExtractorRightBoundary("\"");
+    sampleWithGet(SERVER_PATH_200_JSON);
+    assertThat(variables.get("extracted")).isEqualTo("abc123");
+  }
+
+  @Test
+  public void shouldSetVariableWithRegexGroupWhenStreamingExtractorMatchesRegex()
+      throws Exception {
+    buildStartedServer();
+    JMeterVariables variables = buildJMeterVariables();
+    setupStreamingExtractor("REGEX", "\"token\": \"(\\w+)\"");
+    sampleWithGet(SERVER_PATH_200_JSON);
+    assertThat(variables.get("extracted")).isEqualTo("abc123");
+  }
+
+  private void setupStreamingExtractor(String type, String expression) {
+    sampler.setStreamingExtractorType(type);
+    sampler.setStreamingExtractorVariable("extracted");
+    sampler.setStreamingExtractorExpression(expression);
+  }
+
+  @Test
+  public void shouldGetSameHeadersSizeWithoutHeadersAndQueryStringWhenLeanResults()
+      throws Exception {
+    buildStartedServer();
+    sampler.setMethod(HTTPConstants.POST);
+    sampler.addArgument("test1", TEST_ARGUMENT_1);
+    HTTPSampleResult fullResult = sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST);
+    JMeterUtils.setProperty("httpJettyClient.leanResults", "true");
+    try {
+      HTTPSampleResult result = sample(SERVER_PATH_200_WITH_BODY, HTTPConstants.POST);
+      softly.assertThat(result.getHeadersSize()).isEqualTo(fullResult.getHeadersSize());
+      softly.assertThat(result.getResponseHeaders()).isEmpty();
+      softly.assertThat(result.getRequestHeaders()).isEmpty();
+      softly.assertThat(result.getQueryString()).isEmpty();
+      softly.assertThat(result.getResponseDataAsString())
+          .isEqualTo(fullResult.getResponseDataAsString());
+    } finally {
+      JMeterUtils.setProperty("httpJettyClient.leanResults", "false");
+    }
+  }
+
+  @Test
+  public void shouldOnlyCountResponseWhenCaptureFailuresOnlyAndSampleIsSuccessful()
+      throws Exception {
+    buildStartedServer();
+    sampler.setCaptureFailuresOnly(true);
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getResponseData()).isEmpty();
+    softly.assertThat(result.getResponseHeaders()).isEmpty();
+    softly.assertThat(result.getRequestHeaders()).isEmpty();
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(SERVER_RESPONSE.length());
+    softly.assertThat(result.getHeadersSize()).isGreaterThan(0);
+  }
+
+  @Test
+  public void shouldKeepResponseHeadersWhenCaptureFailuresOnlyAndSampleFails() throws Exception {
+    buildStartedServer();
+    sampler.setCaptureFailuresOnly(true);
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_400);
+    softly.assertThat(result.isSuccessful()).isFalse();
+    softly.assertThat(result.getResponseHeaders()).startsWith("HTTP/2.0 400");
+  }
+
+  @Test
+  public void shouldKeepResponseWhenCaptureFailuresOnlyAndStreamingAssertionFails()
+      throws Exception {
+    buildStartedServer();
+    sampler.setCaptureFailuresOnly(true);
+    sampler.setStreamingAssertionType("SUBSTRING");
+    sampler.setStreamingAssertionPattern("Bye");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.isSuccessful()).isFalse();
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(SERVER_RESPONSE);
+  }
+
+  @Test
+  public void shouldKeepResponseWhenCaptureFailuresOnlyAndStatusMatchesPattern()
+      throws Exception {
+    buildStartedServer();
+    sampler.setCaptureFailuresOnly(true);
+    sampler.setCaptureStatusPattern("2\\d\\d");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(SERVER_RESPONSE);
+    softly.assertThat(result.getResponseHeaders()).isNotEmpty();
+  }
+
+  @Test
+  public void shouldKeepResponseWhenCaptureFailuresOnlyAndSampleExceedsMinTime()
+      throws Exception {
+    buildStartedServer();
+    sampler.setCaptureFailuresOnly(true);
+    sampler.setCaptureMinTime("0");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(SERVER_RESPONSE);
+  }
+
+  @Test
+  public void shouldReuseBuffersFromPoolWhenSendingSeveralRequests() throws Exception {
+    buildStartedServer();
+    sampleWithGet();
+    long hits = HTTP2JettyClient.BUFFER_POOL.getHits();
+    sampleWithGet();
+    softly.assertThat(HTTP2JettyClient.BUFFER_POOL.getHits()).isGreaterThan(hits);
+    softly.assertThat(HTTP2JettyClient.BUFFER_POOL.getRetainedBytes()).isGreaterThan(0);
+  }
+
+  @Test
+  public void shouldKeepAllocatedBytesPerSampleWithinBudgetWhenDiscardResponseBody()
+      throws Exception {
+    sampler.setDiscardResponseBody(true);
+    assertThat(measureAllocatedBytesPerSample(SERVER_PATH_200))
+        .isLessThanOrEqualTo(ALLOCATION_BUDGET_PER_SAMPLE);
+  }
+
+  /*
+   Only allocations of the sampling thread are measured, since the other threads of the JVM
+   (like the test server ones) would make the measure unstable. Response content is received in
+   client threads, so the budget doesn't depend on the response body size.
+   */
+  private long measureAllocatedBytesPerSample(String path) throws Exception {
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported()
+        && threads.isThreadAllocatedMemoryEnabled());
+    buildStartedServer();
+    HeaderManager hm = new HeaderManager();
+    hm.add(new Header("Header1", "value1"));
+    sampler.setHeaderManager(hm);
+    client.loadProperties();
+    URL url = createURL(path);
+    Level previousLevel = LogManager.getLogger(PLUGIN_LOGGER).getLevel();
+    // debug logging of requests would be measured otherwise
+    Configurator.setLevel(PLUGIN_LOGGER, Level.INFO);
+    try {
+      for (int i = 0; i < ALLOCATION_WARMUP_SAMPLES; i++) {
+        client.sample(sampler, buildBaseResult(url, HTTPConstants.GET), false, 0);
+      }
+      long threadId = Thread.currentThread().getId();
+      long allocated = threads.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < ALLOCATION_MEASURED_SAMPLES; i++) {
+        client.sample(sampler, buildBaseResult(url, HTTPConstants.GET), false, 0);
+      }
+      return (threads.getThreadAllocatedBytes(threadId) - allocated)
+          / ALLOCATION_MEASURED_SAMPLES;
+    } finally {
+      Configurator.setLevel(PLUGIN_LOGGER, previousLevel);
+    }
+  }
+
+  @Test
+  public void shouldKeepAllocatedBytesPerSampleWithinBudgetWhenStoringResponseBody()
+      throws Exception {
+    assertThat(measureAllocatedBytesPerSample(SERVER_PATH_200_RANGES))
+        .isLessThanOrEqualTo(ALLOCATION_BUDGET_PER_SAMPLE);
+  }
+
+  @Test
+  public void shouldGetWholeBodyWithSegmentSubResultsWhenRangeSegments() throws Exception {
+    buildStartedServer();
+    sampler.setRangeSegments("4");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_RANGES);
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getResponseData()).isEqualTo(RANGES_RESPONSE_BODY);
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(RANGES_RESPONSE_BODY.length);
+    softly.assertThat(result.getSubResults()).hasSize(5);
+    softly.assertThat(result.getSubResults()[4].getResponseCode()).isEqualTo("206");
+    softly.assertThat(result.getSubResults()[4].getBodySizeAsLong()).isEqualTo(2500);
+  }
+
+  @Test
+  public void shouldIncludeSizeProbeInSubResultsAndTotalsWhenRangeSegments() throws Exception {
+    buildStartedServer();
+    sampler.setRangeSegments("2");
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_RANGES);
+    SampleResult[] subResults = result.getSubResults();
+    softly.assertThat(subResults[0].getResponseCode()).isEqualTo("206");
+    softly.assertThat(subResults[0].isSuccessful()).isTrue();
+    softly.assertThat(result.getHeadersSize()).isEqualTo(Arrays.stream(subResults)
+        .mapToInt(SampleResult::getHeadersSize).sum());
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(Arrays.stream(subResults)
+        .mapToLong(SampleResult::getBodySizeAsLong).sum());
+  }
+
+  @Test
+  public void shouldOnlyCountBodyWhenRangeSegmentsAndDiscardResponseBody() throws Exception {
+    buildStartedServer();
+    sampler.setRangeSegments("3");
+    sampler.setDiscardResponseBody(true);
+    HTTPSampleResult result = sampleWithGet(SERVER_PATH_200_RANGES);
+    softly.assertThat(result.isSuccessful()).isTrue();
+    softly.assertThat(result.getResponseData()).isEmpty();
+    softly.assertThat(result.getBodySizeAsLong()).isEqualTo(RANGES_RESPONSE_BODY.length);
+    softly.assertThat(result.getSubResults()).hasSize(4);
+  }
+
+  @Test
+  public void shouldGetWholeBodyWithSingleRequestWhenRangeSegmentsAndServerDoesNotSupportRanges()
+      throws Exception {
+    buildStartedServer();
+    sampler.setRangeSegments("4");
+    HTTPSampleResult result = sampleWithGet();
+    softly.assertThat(result.getResponseDataAsString()).isEqualTo(SERVER_RESPONSE);
+    softly.assertThat(result.getSubResults()).isEmpty();
+  }
+
 }
@@ -0,0 +1,59 @@
+package com.blazemeter.jmeter.http2.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.assertj.core.api.JUnitSoftAssertions;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class InstrumentedByteBufferPoolTest {
+
+  private static final int FACTOR = 1024;
+  private static final int BUFFERS_COUNT = 4;
+
+  @Rule
+  public final JUnitSoftAssertions softly = new JUnitSoftAssertions();
+
+  @Test
+  public void shouldKeepAllReleasedBuffersWhenDefaultLimits() {
+    InstrumentedByteBufferPool pool = new InstrumentedByteBufferPool(FACTOR, -1, 0, 0);
+    releaseAll(acquireBuffers(pool), pool);
+    acquireBuffers(pool);
+    softly.assertThat(pool.getHits()).isEqualTo(BUFFERS_COUNT);
+    softly.assertThat(pool.getMisses()).isEqualTo(BUFFERS_COUNT);
+  }
+
+  private List<ByteBuffer> acquireBuffers(InstrumentedByteBufferPool pool) {
+    List<ByteBuffer> ret = new ArrayList<>();
+    for (int i = 0; i < BUFFERS_COUNT; i++) {
+      ret.add(pool.acquire(FACTOR, false));
+    }
+    return ret;
+  }
+
+  private void releaseAll(List<ByteBuffer> buffers, InstrumentedByteBufferPool pool) {
+    buffers.forEach(pool::release);
+  }
+
+  @Test
+  public void shouldKeepOnlyMaxBucketSizeBuffersWhenReleasingMoreBuffersOfSameSize() {
+    InstrumentedByteBufferPool pool = new InstrumentedByteBufferPool(FACTOR, 1, 0, 0);
+    releaseAll(acquireBuffers(pool), pool);
+    softly.assertThat(pool.getRetainedBytes()).isEqualTo(FACTOR);
+    acquireBuffers(pool);
+    softly.assertThat(pool.getHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldEvictBuffersWhenReleasedBuffersExceedMaxHeapMemory() {
+    long maxHeapMemory = 2L * FACTOR;
+    InstrumentedByteBufferPool pool = new InstrumentedByteBufferPool(FACTOR, -1, maxHeapMemory,
+        0);
+    releaseAll(acquireBuffers(pool), pool);
+    softly.assertThat(pool.getRetainedBytes()).isLessThanOrEqualTo(maxHeapMemory);
+    acquireBuffers(pool);
+    softly.assertThat(pool.getHits()).isLessThan(BUFFERS_COUNT);
+  }
+
+}
@@ -0,0 +1,65 @@
+package com.blazemeter.jmeter.http2.core;
+
+import com.blazemeter.jmeter.http2.core.UploadFileCache.UploadFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.assertj.core.api.JUnitSoftAssertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadFileCacheTest {
+
+  private static final int FILE_SIZE = 4;
+
+  @Rule
+  public final JUnitSoftAssertions softly = new JUnitSoftAssertions();
+  @Rule
+  public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void shouldReuseMappedFileWhenFileIsFoundAgain() throws IOException {
+    UploadFileCache cache = new UploadFileCache(2 * FILE_SIZE);
+    String path = buildFile(FILE_SIZE);
+    UploadFile file = cache.find(path);
+    softly.assertThat(file.isCached()).isTrue();
+    softly.assertThat(cache.find(path)).isSameAs(file);
+    softly.assertThat(cache.getSize()).isEqualTo(FILE_SIZE);
+  }
+
+  private String buildFile(int size) throws IOException {
+    File ret = tempFolder.newFile();
+    Files.write(ret.toPath(), new byte[size]);
+    return ret.getPath();
+  }
+
+  @Test
+  public void shouldDropLeastRecentlyUsedFileWhenCacheSizeIsExceeded() throws IOException {
+    UploadFileCache cache = new UploadFileCache(2 * FILE_SIZE);
+    String first = buildFile(FILE_SIZE);
+    String second = buildFile(FILE_SIZE);
+    UploadFile firstFile = cache.find(first);
+    UploadFile secondFile = cache.find(second);
+    cache.find(first);
+    cache.find(buildFile(FILE_SIZE));
+    softly.assertThat(cache.getSize()).isEqualTo(2 * FILE_SIZE);
+    softly.assertThat(cache.find(first)).isSameAs(firstFile);
+    softly.assertThat(cache.find(second)).isNotSameAs(secondFile);
+  }
+
+  @Test
+  public void shouldNotCacheFileWhenFileIsBiggerThanCacheSize() throws IOException {
+    UploadFileCache cache = new UploadFileCache(FILE_SIZE);
+    UploadFile file = cache.find(buildFile(FILE_SIZE + 1));
+    softly.assertThat(file.isCached()).isFalse();
+    softly.assertThat(cache.getSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldNotCacheFileWhenCacheSizeIsZero() throws IOException {
+    UploadFileCache cache = new UploadFileCache(0);
+    softly.assertThat(cache.find(buildFile(FILE_SIZE)).isCached()).isFalse();
+  }
+
+}
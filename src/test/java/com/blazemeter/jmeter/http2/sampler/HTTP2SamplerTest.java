@@ -4,12 +4,24 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.blazemeter.jmeter.http2.core.CircuitBreakerOpenException;
 import com.blazemeter.jmeter.http2.core.HTTP2JettyClient;
+import com.blazemeter.jmeter.http2.sampler.HTTP2Sampler.ConnectionResetMode;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
+import org.apache.jmeter.protocol.http.util.HTTPConstants;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
 import org.assertj.core.api.JUnitSoftAssertions;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -37,6 +49,12 @@ public class HTTP2SamplerTest {
     sampler = new HTTP2Sampler(() -> client);
   }
 
+  @After
+  public void teardown() {
+    JMeterUtils.setProperty("httpJettyClient.circuitBreaker.failureThreshold", "0");
+    sampler.testEnded();
+  }
+
   @Test
   public void shouldReturnErrorMessageWhenThreadIsInterrupted() throws Exception {
     when(client.sample(any(), any(), anyBoolean(), anyInt()))
@@ -55,4 +73,165 @@ public class HTTP2SamplerTest {
         .thenThrow(new TimeoutException());
     validateErrorResponse(sampler.sample(), TimeoutException.class.getName());
   }
+
+  @Test
+  public void shouldAbortClientRequestsWhenInterruptedWhileSampling() throws Exception {
+    when(client.sample(any(), any(), anyBoolean(), anyInt())).thenAnswer(invocation -> {
+      sampler.interrupt();
+      return new HTTPSampleResult();
+    });
+    sampler.sample();
+    verify(client).abortRequests(any());
+  }
+
+  @Test
+  public void shouldNotInterruptWhenNoSampleIsInProgress() {
+    softly.assertThat(sampler.interrupt()).isFalse();
+  }
+
+  @Test
+  public void shouldReuseSamplerClientWhenSamplingOtherDestinations() throws Exception {
+    sampler = new HTTP2Sampler();
+    sampler.setDomain("localhost");
+    sampler.setPort(1);
+    try {
+      sampler.sample(new URL("http://127.0.0.1:1/embedded.png"), HTTPConstants.GET, false, 1);
+      sampler.sample(new URL("http://127.0.0.2:1/redirected"), HTTPConstants.GET, true, 0);
+      softly.assertThat(HTTP2Sampler.getThreadClientsCount()).isEqualTo(1);
+    } finally {
+      sampler.threadFinished();
+    }
+  }
+
+  @Test
+  public void shouldGetAbortAfterBytesWhenValueHasSpaces() {
+    sampler.setAbortAfterBytes(" 10 ");
+    softly.assertThat(sampler.getAbortAfterBytes()).isEqualTo(10);
+  }
+
+  @Test
+  public void shouldNotAbortAfterBytesWhenValueIsInvalid() {
+    sampler.setAbortAfterBytes("10KB");
+    softly.assertThat(sampler.getAbortAfterBytes()).isEqualTo(-1);
+  }
+
+  @Test
+  public void shouldNotAbortAfterBytesWhenValueIsEmpty() {
+    sampler.setAbortAfterBytes("");
+    softly.assertThat(sampler.getAbortAfterBytes()).isEqualTo(-1);
+  }
+
+  @Test
+  public void shouldGetExpectContinueThresholdWhenValueHasSpaces() {
+    sampler.setExpectContinueThreshold(" 1024 ");
+    softly.assertThat(sampler.getExpectContinueThreshold()).isEqualTo(1024);
+  }
+
+  @Test
+  public void shouldNotExpectContinueWhenThresholdIsInvalid() {
+    sampler.setExpectContinueThreshold("1KB");
+    softly.assertThat(sampler.getExpectContinueThreshold()).isEqualTo(-1);
+  }
+
+  @Test
+  public void shouldParseConnectionResetModeIgnoringCase() {
+    softly.assertThat(HTTP2Sampler.parseConnectionResetMode(" tls_resumption "))
+        .isEqualTo(ConnectionResetMode.TLS_RESUMPTION);
+  }
+
+  @Test
+  public void shouldNotResetConnectionsWhenConnectionResetModeIsUnknown() {
+    softly.assertThat(HTTP2Sampler.parseConnectionResetMode("FULL_HANDSAHKE"))
+        .isEqualTo(ConnectionResetMode.NONE);
+  }
+
+  @Test
+  public void shouldFailFastWhenConnectFailuresReachCircuitBreakerThreshold() throws Exception {
+    sampler = buildSamplerWithCircuitBreaker(60000);
+    when(client.sample(any(), any(), anyBoolean(), anyInt()))
+        .thenThrow(new ExecutionException(new ConnectException()));
+    sampler.sample();
+    sampler.sample();
+    validateErrorResponse(sampler.sample(), CircuitBreakerOpenException.class.getName());
+    verify(client, times(2)).sample(any(), any(), anyBoolean(), anyInt());
+  }
+
+  private HTTP2Sampler buildSamplerWithCircuitBreaker(long coolDown) {
+    JMeterUtils.setProperty("httpJettyClient.circuitBreaker.failureThreshold", "2");
+    JMeterUtils.setProperty("httpJettyClient.circuitBreaker.coolDown", String.valueOf(coolDown));
+    HTTP2Sampler ret = new HTTP2Sampler(() -> client);
+    ret.setDomain("localhost");
+    return ret;
+  }
+
+  @Test
+  public void shouldProbeDestinationWhenCircuitBreakerCoolDownExpires() throws Exception {
+    sampler = buildSamplerWithCircuitBreaker(100);
+    HTTPSampleResult success = new HTTPSampleResult();
+    success.setSuccessful(true);
+    when(client.sample(any(), any(), anyBoolean(), anyInt()))
+        .thenThrow(new ExecutionException(new ConnectException()))
+        .thenThrow(new ExecutionException(new ConnectException()))
+        .thenReturn(success);
+    stubCommittedRequests();
+    sampler.sample();
+    sampler.sample();
+    Thread.sleep(200);
+    softly.assertThat(sampler.sample().isSuccessful()).isTrue();
+    softly.assertThat(sampler.sample().isSuccessful()).isTrue();
+  }
+
+  private void stubCommittedRequests() {
+    AtomicLong committedRequests = new AtomicLong();
+    when(client.getCommittedRequests()).thenAnswer(i -> committedRequests.incrementAndGet());
+  }
+
+  @Test
+  public void shouldProbeAgainAfterCoolDownWhenProbeIsInterrupted() throws Exception {
+    sampler = buildSamplerWithCircuitBreaker(100);
+    HTTPSampleResult success = new HTTPSampleResult();
+    success.setSuccessful(true);
+    when(client.sample(any(), any(), anyBoolean(), anyInt()))
+        .thenThrow(new ExecutionException(new ConnectException()))
+        .thenThrow(new ExecutionException(new ConnectException()))
+        .thenThrow(new InterruptedException())
+        .thenReturn(success);
+    stubCommittedRequests();
+    sampler.sample();
+    sampler.sample();
+    Thread.sleep(200);
+    validateErrorResponse(sampler.sample(), InterruptedException.class.getName());
+    Thread.interrupted();
+    validateErrorResponse(sampler.sample(), CircuitBreakerOpenException.class.getName());
+    Thread.sleep(200);
+    softly.assertThat(sampler.sample().isSuccessful()).isTrue();
+  }
+
+  @Test
+  public void shouldKeepCircuitBreakerOpenWhenProbeFailsBeforeSendingRequest() throws Exception {
+    sampler = buildSamplerWithCircuitBreaker(100);
+    when(client.sample(any(), any(), anyBoolean(), anyInt()))
+        .thenThrow(new ExecutionException(new ConnectException()))
+        .thenThrow(new ExecutionException(new ConnectException()))
+        .thenThrow(new IllegalStateException("Param name is blank"));
+    sampler.sample();
+    sampler.sample();
+    Thread.sleep(200);
+    validateErrorResponse(sampler.sample(), IllegalStateException.class.getName());
+    validateErrorResponse(sampler.sample(), CircuitBreakerOpenException.class.getName());
+  }
+
+  @Test
+  public void shouldNotResetConnectFailuresWhenSampleFailsBeforeSendingRequest()
+      throws Exception {
+    sampler = buildSamplerWithCircuitBreaker(60000);
+    when(client.sample(any(), any(), anyBoolean(), anyInt()))
+        .thenThrow(new ExecutionException(new ConnectException()))
+        .thenThrow(new IllegalStateException("Param name is blank"))
+        .thenThrow(new ExecutionException(new ConnectException()));
+    sampler.sample();
+    sampler.sample();
+    sampler.sample();
+    validateErrorResponse(sampler.sample(), CircuitBreakerOpenException.class.getName());
+  }
 }